@@ -0,0 +1,384 @@
+import java.util.List;
+
+/**
+ * Typed syntax tree of a jack class, built by CompilationEngine and walked by AstVisitor implementations (VM code
+ * generation, xml output). Variables are resolved against the symbol table while parsing, so the tree carries their
+ * kind, type and index.
+ */
+abstract class Ast {
+    abstract void accept(AstVisitor visitor);
+
+    /**
+     * A declared or referenced variable, resolved to its symbol table entry
+     */
+    static class Variable {
+        final String name;
+        final SymbolTable.Kind kind;
+        final String type;
+        final int index;
+
+        Variable(String name, SymbolTable.Kind kind, String type, int index) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.index = index;
+        }
+
+        // VM memory segment holding the variable
+        String getSegment() {
+            return kind.segment;
+        }
+    }
+
+    /**
+     * 'class' className '{' classVarDec* subroutineDec* '}'
+     */
+    static class ClassDec extends Ast {
+        final String name;
+        final List<ClassVarDec> classVarDecs;
+        final List<SubroutineDec> subroutineDecs;
+        final int nFields;
+        final int nStatics;
+
+        ClassDec(String name, List<ClassVarDec> classVarDecs, List<SubroutineDec> subroutineDecs, int nFields,
+                 int nStatics) {
+            this.name = name;
+            this.classVarDecs = classVarDecs;
+            this.subroutineDecs = subroutineDecs;
+            this.nFields = nFields;
+            this.nStatics = nStatics;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * ('static' | 'field' ) type varName (',' varName)* ';'
+     */
+    static class ClassVarDec extends Ast {
+        final String kind; // 'static' or 'field'
+        final String type;
+        final List<Variable> variables;
+        final List<Expression> values; // initializers of 'static final' constants, null for variables
+
+        ClassVarDec(String kind, String type, List<Variable> variables, List<Expression> values) {
+            this.kind = kind;
+            this.type = type;
+            this.variables = variables;
+            this.values = values;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * ('constructor' | 'function' | 'method') ('void' | type) subroutineName '(' parameterList ')' subroutineBody
+     */
+    static class SubroutineDec extends Ast {
+        final String kind; // 'constructor', 'function' or 'method'
+        final String returnType;
+        final String name;
+        final List<Variable> parameters;
+        final List<VarDec> varDecs;
+        final List<Statement> statements;
+        final int nLocals;
+
+        SubroutineDec(String kind, String returnType, String name, List<Variable> parameters, List<VarDec> varDecs,
+                      List<Statement> statements, int nLocals) {
+            this.kind = kind;
+            this.returnType = returnType;
+            this.name = name;
+            this.parameters = parameters;
+            this.varDecs = varDecs;
+            this.statements = statements;
+            this.nLocals = nLocals;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * 'var' type varName (',' varName)* ';'
+     */
+    static class VarDec extends Ast {
+        final String type;
+        final List<Variable> variables;
+
+        VarDec(String type, List<Variable> variables) {
+            this.type = type;
+            this.variables = variables;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    abstract static class Statement extends Ast {
+    }
+
+    /**
+     * 'let' varName ('[' expression ']')? '=' expression ';'
+     */
+    static class LetStatement extends Statement {
+        final Variable variable;
+        final Expression index; // null unless an array element is assigned
+        final Expression value;
+
+        LetStatement(Variable variable, Expression index, Expression value) {
+            this.variable = variable;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * 'if' '(' expression ')' '{' statements '}' ( 'else' '{' statements '}' )?
+     */
+    static class IfStatement extends Statement {
+        final Expression condition;
+        final List<Statement> thenStatements;
+        final List<Statement> elseStatements; // null without 'else'
+
+        IfStatement(Expression condition, List<Statement> thenStatements, List<Statement> elseStatements) {
+            this.condition = condition;
+            this.thenStatements = thenStatements;
+            this.elseStatements = elseStatements;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * 'while' '(' expression ')' '{' statements '}'
+     */
+    static class WhileStatement extends Statement {
+        final Expression condition;
+        final List<Statement> statements;
+
+        WhileStatement(Expression condition, List<Statement> statements) {
+            this.condition = condition;
+            this.statements = statements;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * 'do' subroutineCall ';'
+     */
+    static class DoStatement extends Statement {
+        final CallExpr call;
+
+        DoStatement(CallExpr call) {
+            this.call = call;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * 'return' expression? ';'
+     */
+    static class ReturnStatement extends Statement {
+        final Expression value; // null in void subroutines
+
+        ReturnStatement(Expression value) {
+            this.value = value;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    abstract static class Expression extends Ast {
+    }
+
+    // integerConstant
+    static class IntegerExpr extends Expression {
+        final int value;
+
+        IntegerExpr(int value) {
+            this.value = value;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // stringConstant
+    static class StringExpr extends Expression {
+        final String value;
+
+        StringExpr(String value) {
+            this.value = value;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // 'true' | 'false' | 'null' | 'this'
+    static class KeywordExpr extends Expression {
+        final String keyword;
+
+        KeywordExpr(String keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // varName
+    static class VarExpr extends Expression {
+        final Variable variable;
+
+        VarExpr(Variable variable) {
+            this.variable = variable;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // varName '[' expression ']'
+    static class ArrayExpr extends Expression {
+        final Variable array;
+        final Expression index;
+
+        ArrayExpr(Variable array, Expression index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    /**
+     * subroutineName '(' expressionList ')' | ( className | varName) '.' subroutineName '(' expressionList ')'
+     */
+    static class CallExpr extends Expression {
+        final Variable receiver; // varName.subroutineName(...), else null
+        final String className; // className.subroutineName(...), else null
+        final String name;
+        final List<Expression> arguments;
+
+        CallExpr(Variable receiver, String className, String name, List<Expression> arguments) {
+            this.receiver = receiver;
+            this.className = className;
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        // true for subroutineName(...), a method call on 'this'
+        boolean isBare() {
+            return receiver == null && className == null;
+        }
+
+        /**
+         * Returns the VM name of the called subroutine, e.g. Square.moveUp
+         *
+         * @param enclosingClass: class the call is made in
+         * @return
+         */
+        String getFunction(String enclosingClass) {
+            if (isBare()) {
+                return enclosingClass + "." + name;
+            } else if (receiver != null) {
+                return receiver.type + "." + name;
+            }
+            return className + "." + name;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // unaryOp term
+    static class UnaryExpr extends Expression {
+        final char op; // '-' or '~'
+        final Expression operand;
+
+        UnaryExpr(char op, Expression operand) {
+            this.op = op;
+            this.operand = operand;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // left op right, operators are left associative and have no precedence: a - b + c is (a - b) + c
+    static class BinaryExpr extends Expression {
+        final char op;
+        final Expression left;
+        final Expression right;
+
+        BinaryExpr(char op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+
+    // '(' expression ')'
+    static class ParenExpr extends Expression {
+        final Expression expression;
+
+        ParenExpr(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        void accept(AstVisitor visitor) {
+            visitor.visit(this);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Visitor over the typed syntax tree, see Ast.accept
+ */
+interface AstVisitor {
+    void visit(Ast.ClassDec node);
+
+    void visit(Ast.ClassVarDec node);
+
+    void visit(Ast.SubroutineDec node);
+
+    void visit(Ast.VarDec node);
+
+    void visit(Ast.LetStatement node);
+
+    void visit(Ast.IfStatement node);
+
+    void visit(Ast.WhileStatement node);
+
+    void visit(Ast.DoStatement node);
+
+    void visit(Ast.ReturnStatement node);
+
+    void visit(Ast.IntegerExpr node);
+
+    void visit(Ast.StringExpr node);
+
+    void visit(Ast.KeywordExpr node);
+
+    void visit(Ast.VarExpr node);
+
+    void visit(Ast.ArrayExpr node);
+
+    void visit(Ast.CallExpr node);
+
+    void visit(Ast.UnaryExpr node);
+
+    void visit(Ast.BinaryExpr node);
+
+    void visit(Ast.ParenExpr node);
+}
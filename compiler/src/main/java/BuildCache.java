@@ -0,0 +1,196 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Record of the last compilation in an output directory (output/.jackcache), so classes whose outputs are up to date
+ * are not compiled again.
+ * <p>
+ * Each class is recorded with a hash of its source and the classes it refers to. The record is only used by the same
+ * compiler build with the same options, a different one drops it. A class is compiled again when its source changed,
+ * or when a class it refers to changed, was added or was removed.
+ * <p>
+ * File format: a header line, then one line per class: name, source hash and comma separated references, tab
+ * separated.
+ */
+class BuildCache {
+    private static final String FILE_NAME = ".jackcache";
+
+    private final File file;
+    private final String header;
+    private final Map<String, Entry> entries = new TreeMap<>(); // by class name
+
+    /**
+     * Loads the record of an output directory, if there is a valid one
+     *
+     * @param outputDirectory
+     * @param options:        key of the compile options
+     */
+    BuildCache(File outputDirectory, String options) {
+        this.file = new File(outputDirectory, FILE_NAME);
+        this.header = String.format("jackcache compiler=%s %s", getCompilerVersion(), options);
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the classes that must be compiled, and forgets removed classes
+     *
+     * @param sourceHashes:  source hash of every class being compiled, by class name
+     * @param allClasses:    true if sourceHashes holds all classes of the program, so recorded classes missing from it
+     *                       were removed
+     * @return
+     */
+    Set<String> getClassesToCompile(Map<String, String> sourceHashes, boolean allClasses) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> source : sourceHashes.entrySet()) {
+            Entry entry = entries.get(source.getKey());
+            if (entry == null || !entry.sourceHash.equals(source.getValue())) {
+                changed.add(source.getKey());
+            }
+        }
+        if (allClasses) {
+            for (Iterator<String> names = entries.keySet().iterator(); names.hasNext(); ) {
+                String name = names.next();
+                if (!sourceHashes.containsKey(name)) {
+                    changed.add(name);
+                    names.remove();
+                }
+            }
+        }
+
+        Set<String> toCompile = new TreeSet<>();
+        for (String name : sourceHashes.keySet()) {
+            Entry entry = entries.get(name);
+            if (changed.contains(name) || entry.references.stream().anyMatch(changed::contains)) {
+                toCompile.add(name);
+            }
+        }
+        return toCompile;
+    }
+
+    /**
+     * Records a compiled class
+     *
+     * @param name
+     * @param sourceHash
+     * @param references: names of the classes it refers to
+     */
+    void update(String name, String sourceHash, Set<String> references) {
+        entries.put(name, new Entry(sourceHash, new TreeSet<>(references)));
+    }
+
+    /**
+     * Writes the record to the output directory
+     */
+    void save() {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(header);
+            writer.write("\n");
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(String.format("%s\t%s\t%s\n", entry.getKey(), entry.getValue().sourceHash,
+                        String.join(",", entry.getValue().references)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the hex SHA-256 hash of a file
+     *
+     * @param file
+     * @return
+     */
+    static String hash(File file) {
+        MessageDigest digest = newDigest();
+        try {
+            digest.update(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            if (!header.equals(reader.readLine())) {
+                return; // other compiler build or options, nothing can be reused
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                Set<String> references = fields[2].isEmpty() ? new TreeSet<>()
+                        : new TreeSet<>(Arrays.asList(fields[2].split(",")));
+                entries.put(fields[0], new Entry(fields[1], references));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // hash of the compiler's own classes, so a rebuilt compiler doesn't reuse outputs of the previous build
+    private static String getCompilerVersion() {
+        CodeSource codeSource = BuildCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return "unknown-" + System.nanoTime(); // can't tell, reuse nothing
+        }
+        MessageDigest digest = newDigest();
+        try {
+            Path location = Paths.get(codeSource.getLocation().toURI());
+            List<Path> files;
+            if (Files.isDirectory(location)) {
+                try (Stream<Path> paths = Files.walk(location)) {
+                    files = paths.filter(path -> path.toString().endsWith(".class")).sorted()
+                            .collect(Collectors.toList());
+                }
+            } else {
+                files = Collections.singletonList(location);
+            }
+            for (Path path : files) {
+                digest.update(location.relativize(path).toString().getBytes("UTF-8"));
+                digest.update(Files.readAllBytes(path));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest()).substring(0, 16);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        final String sourceHash;
+        final Set<String> references;
+
+        Entry(String sourceHash, Set<String> references) {
+            this.sourceHash = sourceHash;
+            this.references = references;
+        }
+    }
+}
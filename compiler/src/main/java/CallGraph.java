@@ -0,0 +1,177 @@
+import java.util.*;
+
+/**
+ * Call graph of a whole program, built from the syntax trees of all its classes. Calls are resolved the way VMWriter
+ * resolves them: to the class of the call, the declared type of the receiver variable or the named class. VM code has
+ * no function pointers, so a subroutine no call chain from the root reaches can't run and needs no code.
+ * <p>
+ * Inlined calls are left out, so subroutines that are inlined everywhere have no code either.
+ * <p>
+ * Classes named like an OS class stand in for that class. The rest of the OS and the code VMWriter writes for
+ * operators, strings and constructors call into them, so all their subroutines are kept.
+ */
+class CallGraph implements AstVisitor {
+    private static final Set<String> OS_CLASSES = new HashSet<>(Arrays.asList("Math", "Memory", "Array", "String",
+            "Output", "Screen", "Keyboard", "Sys"));
+
+    private final Map<String, Set<String>> callees = new HashMap<>(); // by VM name of the caller
+    private final Inliner inliner;
+    private final Set<String> roots = new TreeSet<>();
+    private String className;
+    private Set<String> calls; // callees of the subroutine being visited
+
+    /**
+     * @param inliner: calls it inlines are not calls, null if nothing is inlined
+     */
+    CallGraph(Inliner inliner) {
+        this.inliner = inliner;
+    }
+
+    /**
+     * Adds the subroutines of a class and their calls
+     *
+     * @param classDec
+     */
+    void add(Ast.ClassDec classDec) {
+        classDec.accept(this);
+    }
+
+    /**
+     * Returns the VM names of the subroutines reachable from Main.main, or from Sys.init if the program has its own
+     * Sys class
+     *
+     * @return all subroutines if the program has no root
+     */
+    Set<String> getReachable() {
+        String root = callees.containsKey("Sys.init") ? "Sys.init" : "Main.main";
+        if (!callees.containsKey(root)) {
+            return new TreeSet<>(callees.keySet());
+        }
+        Set<String> reachable = new TreeSet<>();
+        Deque<String> work = new ArrayDeque<>(roots);
+        work.add(root);
+        while (!work.isEmpty()) {
+            String function = work.poll();
+            Set<String> functionCallees = callees.get(function);
+            if (functionCallees != null && reachable.add(function)) {
+                work.addAll(functionCallees);
+            }
+        }
+        return reachable;
+    }
+
+    @Override
+    public void visit(Ast.ClassDec classDec) {
+        className = classDec.name;
+        for (Ast.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+            subroutineDec.accept(this);
+        }
+    }
+
+    @Override
+    public void visit(Ast.ClassVarDec classVarDec) {
+    }
+
+    @Override
+    public void visit(Ast.SubroutineDec subroutineDec) {
+        String function = className + "." + subroutineDec.name;
+        calls = new HashSet<>();
+        callees.put(function, calls);
+        if (OS_CLASSES.contains(className)) {
+            roots.add(function);
+        }
+        visitAll(subroutineDec.statements);
+    }
+
+    @Override
+    public void visit(Ast.VarDec varDec) {
+    }
+
+    @Override
+    public void visit(Ast.LetStatement letStatement) {
+        if (letStatement.index != null) {
+            letStatement.index.accept(this);
+        }
+        letStatement.value.accept(this);
+    }
+
+    @Override
+    public void visit(Ast.IfStatement ifStatement) {
+        ifStatement.condition.accept(this);
+        visitAll(ifStatement.thenStatements);
+        if (ifStatement.elseStatements != null) {
+            visitAll(ifStatement.elseStatements);
+        }
+    }
+
+    @Override
+    public void visit(Ast.WhileStatement whileStatement) {
+        whileStatement.condition.accept(this);
+        visitAll(whileStatement.statements);
+    }
+
+    @Override
+    public void visit(Ast.DoStatement doStatement) {
+        doStatement.call.accept(this);
+    }
+
+    @Override
+    public void visit(Ast.ReturnStatement returnStatement) {
+        if (returnStatement.value != null) {
+            returnStatement.value.accept(this);
+        }
+    }
+
+    @Override
+    public void visit(Ast.IntegerExpr integerExpr) {
+    }
+
+    @Override
+    public void visit(Ast.StringExpr stringExpr) {
+    }
+
+    @Override
+    public void visit(Ast.KeywordExpr keywordExpr) {
+    }
+
+    @Override
+    public void visit(Ast.VarExpr varExpr) {
+    }
+
+    @Override
+    public void visit(Ast.ArrayExpr arrayExpr) {
+        arrayExpr.index.accept(this);
+    }
+
+    @Override
+    public void visit(Ast.CallExpr call) {
+        if (inliner == null || inliner.get(call, className) == null) {
+            calls.add(call.getFunction(className));
+        }
+        for (Ast.Expression argument : call.arguments) {
+            argument.accept(this);
+        }
+    }
+
+    @Override
+    public void visit(Ast.UnaryExpr unaryExpr) {
+        unaryExpr.operand.accept(this);
+    }
+
+    @Override
+    public void visit(Ast.BinaryExpr binaryExpr) {
+        binaryExpr.left.accept(this);
+        binaryExpr.right.accept(this);
+    }
+
+    @Override
+    public void visit(Ast.ParenExpr parenExpr) {
+        parenExpr.expression.accept(this);
+    }
+
+    private void visitAll(List<? extends Ast> nodes) {
+        for (Ast node : nodes) {
+            node.accept(this);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.*;
+
+/**
+ * Finds the subexpressions a statement evaluates more than once, so VMWriter can keep the first value in a temp slot
+ * and push it again instead of evaluating them again.
+ * <p>
+ * Only expressions without side effects are kept: operators on constants, variables and array elements, with no calls
+ * and no strings. A value is only reused if no call was made since it was evaluated, '*' and '/' count as calls of
+ * Math.multiply and Math.divide: the temp segment is shared by all functions, so the callee may overwrite the slot, and
+ * it may change fields, statics and arrays. Each expression gets a slot if reusing it saves more commands than keeping
+ * it costs, the most expensive first, until the slots run out.
+ */
+class CommonSubexpressions {
+    private static final int CALL_COST = 20; // of '*' and '/', a call of Math.multiply or Math.divide
+    private static final int KEEP_COST = 2; // pop temp, push temp
+
+    private final Map<Ast.Expression, Integer> slots = new IdentityHashMap<>(); // of each occurrence
+    private final Map<String, List<Occurrence>> occurrences = new LinkedHashMap<>(); // by key
+    private int calls = 0;
+
+    /**
+     * @param free:        temp slots the values can be kept in
+     * @param expressions: expressions of a statement, in the order they are evaluated
+     */
+    CommonSubexpressions(List<Integer> free, Ast.Expression... expressions) {
+        for (Ast.Expression expression : expressions) {
+            add(expression);
+        }
+        List<List<Occurrence>> candidates = new ArrayList<>(occurrences.values());
+        candidates.sort(Comparator.comparingInt((List<Occurrence> list) -> list.get(0).cost).reversed());
+        Set<Ast.Expression> skipped = Collections.newSetFromMap(new IdentityHashMap<>()); // inside reused values
+        Iterator<Integer> slotIterator = free.iterator();
+        for (List<Occurrence> candidate : candidates) {
+            if (!slotIterator.hasNext()) {
+                break;
+            }
+            List<Occurrence> evaluated = new ArrayList<>();
+            for (Occurrence occurrence : candidate) {
+                if (!skipped.contains(occurrence.expression)) {
+                    evaluated.add(occurrence);
+                }
+            }
+            Occurrence first = evaluated.isEmpty() ? null : evaluated.get(0);
+            // count the occurrences that can push the kept value, the others evaluate and keep it again
+            int reused = 0;
+            int kept = 0;
+            int callsAtKeep = -1;
+            List<Occurrence> reusing = new ArrayList<>();
+            for (Occurrence occurrence : evaluated) {
+                if (kept > 0 && occurrence.callsBefore == callsAtKeep) {
+                    reused++;
+                    reusing.add(occurrence);
+                } else {
+                    kept++;
+                    callsAtKeep = occurrence.callsAfter;
+                }
+            }
+            if (reused * (first == null ? 0 : first.cost - 1) <= kept * KEEP_COST) {
+                continue;
+            }
+            int slot = slotIterator.next();
+            for (Occurrence occurrence : evaluated) {
+                slots.put(occurrence.expression, slot);
+            }
+            for (Occurrence occurrence : reusing) {
+                skip(occurrence.expression, skipped);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot that keeps the value of an occurrence of a common subexpression
+     *
+     * @param expression
+     * @return null if the expression is not kept
+     */
+    Integer getSlot(Ast.Expression expression) {
+        return slots.get(expression);
+    }
+
+    // visits an expression in evaluation order and records its operator subexpressions, returns their key
+    private String add(Ast.Expression expression) {
+        if (expression instanceof Ast.IntegerExpr) {
+            return String.valueOf(((Ast.IntegerExpr) expression).value);
+        } else if (expression instanceof Ast.KeywordExpr) {
+            return ((Ast.KeywordExpr) expression).keyword;
+        } else if (expression instanceof Ast.VarExpr) {
+            return getKey(((Ast.VarExpr) expression).variable);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return add(((Ast.ParenExpr) expression).expression);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            String index = add(((Ast.ArrayExpr) expression).index);
+            return index == null ? null : getKey(((Ast.ArrayExpr) expression).array) + "[" + index + "]";
+        } else if (expression instanceof Ast.CallExpr) {
+            for (Ast.Expression argument : ((Ast.CallExpr) expression).arguments) {
+                add(argument);
+            }
+            calls++;
+            return null;
+        } else if (expression instanceof Ast.StringExpr) {
+            calls++;
+            return null;
+        }
+        int callsBefore = calls;
+        String key;
+        if (expression instanceof Ast.UnaryExpr) {
+            String operand = add(((Ast.UnaryExpr) expression).operand);
+            key = operand == null ? null : "(" + ((Ast.UnaryExpr) expression).op + operand + ")";
+        } else {
+            Ast.BinaryExpr binaryExpr = (Ast.BinaryExpr) expression;
+            String left = add(binaryExpr.left);
+            String right = add(binaryExpr.right);
+            key = left == null || right == null ? null : "(" + left + binaryExpr.op + right + ")";
+            if (binaryExpr.op == '*' || binaryExpr.op == '/') {
+                calls++;
+            }
+        }
+        int cost = getCost(expression);
+        if (key != null && cost > KEEP_COST + 1) {
+            occurrences.computeIfAbsent(key, k -> new ArrayList<>())
+                    .add(new Occurrence(expression, cost, callsBefore, calls));
+        }
+        return key;
+    }
+
+    private static String getKey(Ast.Variable variable) {
+        return variable.getSegment() + variable.index;
+    }
+
+    // commands to evaluate an expression, about
+    private static int getCost(Ast.Expression expression) {
+        if (expression instanceof Ast.ParenExpr) {
+            return getCost(((Ast.ParenExpr) expression).expression);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            return 4 + getCost(((Ast.ArrayExpr) expression).index);
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return 1 + getCost(((Ast.UnaryExpr) expression).operand);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            Ast.BinaryExpr binaryExpr = (Ast.BinaryExpr) expression;
+            int op = binaryExpr.op == '*' || binaryExpr.op == '/' ? CALL_COST : 1;
+            return op + getCost(binaryExpr.left) + getCost(binaryExpr.right);
+        }
+        return 1;
+    }
+
+    // subexpressions of a reused value are not evaluated
+    private static void skip(Ast.Expression expression, Set<Ast.Expression> skipped) {
+        skipped.add(expression);
+        if (expression instanceof Ast.ParenExpr) {
+            skip(((Ast.ParenExpr) expression).expression, skipped);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            skip(((Ast.ArrayExpr) expression).index, skipped);
+        } else if (expression instanceof Ast.UnaryExpr) {
+            skip(((Ast.UnaryExpr) expression).operand, skipped);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            skip(((Ast.BinaryExpr) expression).left, skipped);
+            skip(((Ast.BinaryExpr) expression).right, skipped);
+        }
+    }
+
+    private static class Occurrence {
+        final Ast.Expression expression;
+        final int cost;
+        final int callsBefore; // calls made before it is evaluated
+        final int callsAfter;
+
+        Occurrence(Ast.Expression expression, int cost, int callsBefore, int callsAfter) {
+            this.expression = expression;
+            this.cost = cost;
+            this.callsBefore = callsBefore;
+            this.callsAfter = callsAfter;
+        }
+    }
+}
@@ -1,552 +1,553 @@
-import java.io.*;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
- * Class for token parsing and output
+ * Class for token parsing, builds the typed syntax tree of a class.
+ * <p>
+ * In direct emit mode the VM code is written while parsing instead: each statement is handed to the VMWriter as soon as
+ * it is parsed and not kept, and if and while statements write their jumps around their nested statements. Only the
+ * trees of single expressions are built, so memory use follows the nesting depth rather than the class size. The
+ * returned tree then has no subroutines.
  */
 class CompilationEngine {
-    public static final SymbolTable SYMBOL_TABLE = new SymbolTable();
-    private final Tokenizer tokenizer;
-    private final VMWriter vmWriter;
-    private String className;
+    private final TokenStream tokens;
+    private final SymbolTable symbolTable;
+    private final VMWriter emitter; // null unless in direct emit mode
+    private final Set<String> classReferences = new TreeSet<>();
 
-    CompilationEngine(Tokenizer tokenizer, VMWriter vmWriter) {
-        this.tokenizer = tokenizer;
-        this.vmWriter = vmWriter;
+    CompilationEngine(TokenStream tokens, SymbolTable symbolTable) {
+        this(tokens, symbolTable, null);
+    }
+
+    /**
+     * @param tokens
+     * @param symbolTable
+     * @param emitter:     writer for direct emit mode, null to build the full tree
+     */
+    CompilationEngine(TokenStream tokens, SymbolTable symbolTable, VMWriter emitter) {
+        this.tokens = tokens;
+        this.symbolTable = symbolTable;
+        this.emitter = emitter;
     }
 
     /**
      * Throws exception if type of token is not same as given tokenType
      *
-     * @param token
+     * @param token:    token index
      * @param tokenType
      */
-    public static void assertToken(Token token, Token.TokenType tokenType) {
-        if (!token.getTokenType().equals(tokenType)) {
-            throw new InvalidTokenException(token);
+    public void assertToken(int token, Token.TokenType tokenType) {
+        if (tokens.getType(token) != tokenType) {
+            throw new InvalidTokenException(tokens.getToken(token));
         }
     }
 
     /**
-     * Throws exception if type of token is not same as given tokenType token value is not same as given value
+     * Throws exception if type of token is not same as given tokenType or token is not the given interned string
      *
-     * @param token
+     * @param token:    token index
      * @param tokenType
-     * @param value
+     * @param id:       intern id of the expected value
      */
-    public static void assertToken(Token token, Token.TokenType tokenType, String value) {
-        if (!(token.getTokenType().equals(tokenType) && token.getValue().equals(value))) {
-            throw new InvalidTokenException(token);
+    public void assertToken(int token, Token.TokenType tokenType, int id) {
+        if (!(tokens.getType(token) == tokenType && tokens.getId(token) == id)) {
+            throw new InvalidTokenException(tokens.getToken(token));
         }
     }
 
+    // true if the next token is the given interned keyword or symbol
+    private boolean nextIs(int id) {
+        return tokens.getId(tokens.peek()) == id;
+    }
+
+    // polls the next token, which must be the given keyword or symbol
+    private void expect(Token.TokenType tokenType, int id) {
+        assertToken(tokens.peek(), tokenType, id);
+        tokens.poll();
+    }
+
+    // polls the next token, which must be an identifier, and returns its name
+    private String pollIdentifier() {
+        assertToken(tokens.peek(), Token.TokenType.IDENTIFIER);
+        return tokens.getValue(tokens.poll());
+    }
+
+    // symbol table entry of a variable used at the given token
+    private Ast.Variable resolve(String name, int token) {
+        SymbolTable.Entry entry = symbolTable.lookup(name);
+        if (entry == null) {
+            throw new InvalidTokenException(String.format("Undefined variable '%s' at %d:%d", name,
+                    tokens.getLine(token), tokens.getColumn(token)));
+        }
+        return new Ast.Variable(name, entry.kind, entry.type, entry.index);
+    }
+
+    // symbol table entry of a variable that is assigned, indexed or called at the given token, not a constant
+    private Ast.Variable resolveVariable(String name, int token) {
+        Ast.Variable variable = resolve(name, token);
+        if (variable.kind == SymbolTable.Kind.CONSTANT) {
+            throw new InvalidTokenException(String.format("'%s' at %d:%d is a constant", name,
+                    tokens.getLine(token), tokens.getColumn(token)));
+        }
+        return variable;
+    }
+
+    // declares a variable in the symbol table
+    private Ast.Variable declare(String name, SymbolTable.Kind kind, String type) {
+        SymbolTable.Entry entry = symbolTable.define(name, kind, type);
+        return new Ast.Variable(name, kind, entry.type, entry.index);
+    }
+
     /**
-     * Writes output to the output file
+     * Parses the class
      *
-     * @param outputFile
+     * @return syntax tree of the class
      */
-    public void writeXml(File outputFile) {
-        BufferedWriter bufferedWriter = null;
-        try {
-            bufferedWriter = new BufferedWriter(new FileWriter(outputFile));
-            bufferedWriter.write(getClassNode().toString());
-            if (tokenizer.hasMoreTokens()) {
-                throw new InvalidTokenException("Only one class can be defined in one jack file!");
-            }
-            bufferedWriter.flush();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        } finally {
-            vmWriter.close();
+    public Ast.ClassDec compileClass() {
+        Ast.ClassDec classDec = getClassDec();
+        if (tokens.hasMoreTokens()) {
+            throw new InvalidTokenException("Only one class can be defined in one jack file!");
         }
+        classReferences.remove(classDec.name);
+        return classDec;
+    }
+
+    /**
+     * Returns the other classes the parsed class refers to, as variable types or in subroutine calls
+     *
+     * @return
+     */
+    Set<String> getClassReferences() {
+        return classReferences;
     }
 
     /**
      * (expression (',' expression)* )?
      */
-    public Node getExpressionList() {
-        List<Node> children = new ArrayList<>();
-        if (!(this.tokenizer.peekToken().getTokenType().equals(Token.TokenType.SYMBOL)
-                && this.tokenizer.peekToken().getValue().equals(")"))) { // found ')', so no expression exists
-            children.add(getExpression());
-            while (true) {
-                if (tokenizer.peekToken().getTokenType().equals(Token.TokenType.SYMBOL)
-                        && this.tokenizer.peekToken().getValue().equals(",")) {
-                    children.add(new TerminalNode(this.tokenizer.pollToken()));
-                    children.add(getExpression());
-                } else {
-                    break;
-                }
+    public List<Ast.Expression> getExpressionList() {
+        List<Ast.Expression> expressions = new ArrayList<>();
+        if (!nextIs(InternTable.RIGHT_PAREN)) { // found ')', so no expression exists
+            expressions.add(getExpression());
+            while (nextIs(InternTable.COMMA)) {
+                tokens.poll();
+                expressions.add(getExpression());
             }
         }
-
-        return new NonTerminalNode("expressionList", children);
+        return expressions;
     }
 
     /**
      * term (op term)*
      */
-    public Node getExpression() {
-        List<Node> children = new ArrayList<>();
-        children.add(getTerm());
-        while (true) {
-            if (new HashSet<>(Arrays.asList("+", "-", "*", "/", "&", "|", "<", ">", "="))
-                    .contains(tokenizer.peekToken().getValue())) {
-                children.add(new TerminalNode(tokenizer.pollToken()));
-                children.add(getTerm());
-            } else {
-                break;
-            }
+    public Ast.Expression getExpression() {
+        Ast.Expression expression = getTerm();
+        while (InternTable.isBinaryOperator(tokens.getId(tokens.peek()))) {
+            char op = tokens.getValue(tokens.poll()).charAt(0);
+            expression = new Ast.BinaryExpr(op, expression, getTerm());
         }
-        return new NonTerminalNode("expression", children);
+        return expression;
     }
 
     /**
      * integerConstant | stringConstant | keywordConstant | varName | varName '[' expression ']' | subroutineCall |
      * '(' expression ')' | unaryOp term
      */
-    public Node getTerm() {
-        Token next = tokenizer.peekToken();
-        List<Node> nodes;
-        switch (next.getTokenType()) {
+    public Ast.Expression getTerm() {
+        int next = tokens.peek();
+        int id = tokens.getId(next);
+        switch (tokens.getType(next)) {
             case INT_CONST:
+                return new Ast.IntegerExpr(Integer.valueOf(tokens.getValue(tokens.poll())));
             case STRING_CONST:
-                nodes = Collections.singletonList(new TerminalNode(tokenizer.pollToken()));
-                break;
+                return new Ast.StringExpr(tokens.getValue(tokens.poll()));
             case KEYWORD:
-                if (next.getValue().equals("true") || next.getValue().equals("false") || next.getValue().equals("this")
-                        || next.getValue().equals("null")) {
-                    nodes = Collections.singletonList(new TerminalNode(tokenizer.pollToken()));
-                } else {
-                    throw new InvalidTokenException(next);
+                if (id == InternTable.TRUE || id == InternTable.FALSE || id == InternTable.THIS
+                        || id == InternTable.NULL) {
+                    return new Ast.KeywordExpr(tokens.getValue(tokens.poll()));
                 }
-                break;
+                throw new InvalidTokenException(tokens.getToken(next));
             case IDENTIFIER:
-                nodes = new ArrayList<>();
-                Token varName = tokenizer.pollToken();
-
-                if (tokenizer.peekToken().getTokenType().equals(Token.TokenType.SYMBOL)
-                        && tokenizer.peekToken().getValue().equals("[")) {
-                    // varName[expression]
-                    nodes.add(new IdentifierTerminalNode(varName.getValue(), SYMBOL_TABLE.getKind(varName.getValue()),
-                            SYMBOL_TABLE.getType(varName.getValue()), SYMBOL_TABLE.getIndex(varName.getValue()), true));
-                    assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "[");
-                    nodes.add(new TerminalNode(tokenizer.pollToken()));
-                    nodes.add(getExpression());
-                    assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "]");
-                    nodes.add(new TerminalNode(tokenizer.pollToken()));
-                } else if (tokenizer.peekToken().getTokenType().equals(Token.TokenType.SYMBOL)
-                        && tokenizer.peekToken().getValue().equals(".")) {
-                    nodes.addAll(getSubroutineCall(varName));
-                } else {
-                    nodes.add(new IdentifierTerminalNode(varName.getValue(), SYMBOL_TABLE.getKind(varName.getValue()),
-                            SYMBOL_TABLE.getType(varName.getValue()), SYMBOL_TABLE.getIndex(varName.getValue()), true));
+                String varName = tokens.getValue(tokens.poll());
+                if (nextIs(InternTable.LEFT_BRACKET)) { // varName[expression]
+                    tokens.poll();
+                    Ast.Expression index = getExpression();
+                    expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACKET);
+                    return new Ast.ArrayExpr(resolveVariable(varName, next), index);
+                } else if (nextIs(InternTable.DOT) || nextIs(InternTable.LEFT_PAREN)) {
+                    return getSubroutineCall(varName, next);
                 }
-                break;
+                return new Ast.VarExpr(resolve(varName, next));
             case SYMBOL:
-                nodes = new ArrayList<>();
-                if (next.getValue().equals("(")) { // (expression)
-                    assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-                    nodes.add(new TerminalNode(tokenizer.pollToken()));
-                    nodes.add(getExpression());
-                    assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-                    nodes.add(new TerminalNode(tokenizer.pollToken()));
-                } else if (next.getValue().equals("-") || next.getValue().equals("~")) {
-                    nodes.add(new TerminalNode(tokenizer.pollToken()));
-                    nodes.add(getTerm());
+                if (id == InternTable.LEFT_PAREN) { // (expression)
+                    tokens.poll();
+                    Ast.Expression expression = getExpression();
+                    expect(Token.TokenType.SYMBOL, InternTable.RIGHT_PAREN);
+                    return new Ast.ParenExpr(expression);
+                } else if (id == InternTable.MINUS || id == InternTable.TILDE) {
+                    char op = tokens.getValue(tokens.poll()).charAt(0);
+                    return new Ast.UnaryExpr(op, getTerm());
                 }
-                break;
+                throw new InvalidTokenException(tokens.getToken(next));
             default:
-                throw new InvalidTokenException(next);
+                throw new InvalidTokenException(tokens.getToken(next));
         }
-        return new NonTerminalNode("term", nodes);
     }
 
     /**
      * subroutineName '(' expressionList ')' | ( className | varName) '.' subroutineName '(' expressionList ')'
+     *
+     * @param name:  first identifier of the call, already polled
+     * @param token: index of that identifier
      */
-    public List<Node> getSubroutineCall(Token subroutineName) {
-        List<Node> nodes = new ArrayList<>();
-        if (tokenizer.peekToken().getValue().equals("(")) { // subroutineName(expressionList)
-            nodes.add(new IdentifierTerminalNode(subroutineName.getValue(), "subroutine", null, 0, true));
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-            nodes.add(new TerminalNode(tokenizer.pollToken()));
-            nodes.add(getExpressionList());
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-            nodes.add(new TerminalNode(tokenizer.pollToken()));
-        } else if (tokenizer.peekToken().getValue().equals(".")) { // ( className | varName).subroutineName(expressionList)
-            String name = subroutineName.getValue();
-            if (SYMBOL_TABLE.contains(name)) {
-                nodes.add(new IdentifierTerminalNode(name, SYMBOL_TABLE.getKind(name), SYMBOL_TABLE.getType(name),
-                        SYMBOL_TABLE.getIndex(name), true));
+    public Ast.CallExpr getSubroutineCall(String name, int token) {
+        Ast.Variable receiver = null;
+        String className = null;
+        String subroutineName = name;
+        if (nextIs(InternTable.DOT)) { // ( className | varName).subroutineName(expressionList)
+            tokens.poll();
+            if (symbolTable.lookup(name) != null) {
+                receiver = resolveVariable(name, token);
             } else {
-                nodes.add(new IdentifierTerminalNode(name, "class", null, 0, true));
+                className = name;
+                classReferences.add(name);
             }
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ".");
-            nodes.add(new TerminalNode(tokenizer.pollToken()));
-            assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-            nodes.add(new IdentifierTerminalNode(tokenizer.pollToken().getValue(), "subroutine", null, 0, true)); // subroutineName
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-            nodes.add(new TerminalNode(tokenizer.pollToken()));
-            nodes.add(getExpressionList());
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-            nodes.add(new TerminalNode(tokenizer.pollToken()));
-        } else {
-            throw new InvalidTokenException(tokenizer.peekToken());
+            subroutineName = pollIdentifier();
+        } else if (!nextIs(InternTable.LEFT_PAREN)) {
+            throw new InvalidTokenException(tokens.getToken(tokens.peek()));
+        }
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_PAREN);
+        List<Ast.Expression> arguments = getExpressionList();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_PAREN);
+        return new Ast.CallExpr(receiver, className, subroutineName, arguments);
+    }
+
+    // in direct emit mode writes the statement, which is then dropped
+    private Ast.Statement emit(Ast.Statement statement) {
+        if (emitter == null) {
+            return statement;
         }
-        return nodes;
+        statement.accept(emitter);
+        return null;
     }
 
     /**
      * 'return' expression? ';'
      */
-    public Node getReturnStatement() {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "return");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        if (!tokenizer.peekToken().getValue().equals(";")) {
-            children.add(getExpression());
+    public Ast.ReturnStatement getReturnStatement() {
+        expect(Token.TokenType.KEYWORD, InternTable.RETURN);
+        Ast.Expression value = null;
+        if (!nextIs(InternTable.SEMICOLON)) {
+            value = getExpression();
         }
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ";");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        return new NonTerminalNode("returnStatement", children);
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.ReturnStatement(value);
     }
 
     /**
      * 'do' subroutineCall ';'
      */
-    public Node getDoStatement() {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "do");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        Token subroutineName = tokenizer.pollToken();
-        children.addAll(getSubroutineCall(subroutineName));
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ";");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        return new NonTerminalNode("doStatement", children);
+    public Ast.DoStatement getDoStatement() {
+        expect(Token.TokenType.KEYWORD, InternTable.DO);
+        int token = tokens.peek();
+        Ast.CallExpr call = getSubroutineCall(pollIdentifier(), token);
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.DoStatement(call);
     }
 
     /**
      * while' '(' expression ')' '{' statements '}'
      */
-    public Node getWhileStatement() {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "while");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getExpression());
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "{");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getStatements());
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "}");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        return new NonTerminalNode("whileStatement", children);
+    public Ast.WhileStatement getWhileStatement() {
+        expect(Token.TokenType.KEYWORD, InternTable.WHILE);
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_PAREN);
+        Ast.Expression condition = getExpression();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_PAREN);
+        int whileCount = emitter != null ? emitter.writeWhileStart(condition) : 0;
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_BRACE);
+        List<Ast.Statement> statements = getStatements();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACE);
+        if (emitter != null) {
+            emitter.writeWhileEnd(whileCount, condition);
+            return null;
+        }
+        return new Ast.WhileStatement(condition, statements);
     }
 
     /**
      * 'if' '(' expression ')' '{' statements '}' ( 'else' '{' statements '}' )?
      */
-    public Node getIfStatement() {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "if");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getExpression());
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "{");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getStatements());
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "}");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        if (tokenizer.peekToken().getValue().equals("else")) {
-            assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "else");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "{");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-            children.add(getStatements());
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "}");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-        }
-        return new NonTerminalNode("ifStatement", children);
+    public Ast.IfStatement getIfStatement() {
+        expect(Token.TokenType.KEYWORD, InternTable.IF);
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_PAREN);
+        Ast.Expression condition = getExpression();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_PAREN);
+        int ifGotoCount = emitter != null ? emitter.writeIfStart(condition) : 0;
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_BRACE);
+        List<Ast.Statement> thenStatements = getStatements();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACE);
+        List<Ast.Statement> elseStatements = null;
+        if (nextIs(InternTable.ELSE)) {
+            tokens.poll();
+            if (emitter != null) {
+                emitter.writeElse(ifGotoCount);
+            }
+            expect(Token.TokenType.SYMBOL, InternTable.LEFT_BRACE);
+            elseStatements = getStatements();
+            expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACE);
+        }
+        if (emitter != null) {
+            emitter.writeIfEnd(ifGotoCount, elseStatements != null);
+            return null;
+        }
+        return new Ast.IfStatement(condition, thenStatements, elseStatements);
     }
 
     /**
      * 'let' varName ('[' expression ']')? '=' expression ';'
      */
-    public Node getLetStatement() {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "let");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-        String name = tokenizer.pollToken().getValue();
-        children.add(new IdentifierTerminalNode(name, SYMBOL_TABLE.getKind(name), SYMBOL_TABLE.getType(name),
-                SYMBOL_TABLE.getIndex(name), true));
-        if (tokenizer.peekToken().getValue().equals("[")) {
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "[");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-            children.add(getExpression());
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "]");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-        }
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "=");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getExpression());
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ";");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-//        System.out.println(new NonTerminalNode("letStatement", children));
-        return new NonTerminalNode("letStatement", children);
+    public Ast.LetStatement getLetStatement() {
+        expect(Token.TokenType.KEYWORD, InternTable.LET);
+        int token = tokens.peek();
+        Ast.Variable variable = resolveVariable(pollIdentifier(), token);
+        Ast.Expression index = null;
+        if (nextIs(InternTable.LEFT_BRACKET)) {
+            tokens.poll();
+            index = getExpression();
+            expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACKET);
+        }
+        expect(Token.TokenType.SYMBOL, InternTable.EQUALS);
+        Ast.Expression value = getExpression();
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.LetStatement(variable, index, value);
     }
 
     /**
      * statement*
      */
-    public Node getStatements() {
-        List<Node> children = new ArrayList<>();
-        while (true) {
-            if (tokenizer.peekToken().getValue().equals("}")) {
-                break;
+    public List<Ast.Statement> getStatements() {
+        List<Ast.Statement> statements = new ArrayList<>();
+        while (!nextIs(InternTable.RIGHT_BRACE)) {
+            Ast.Statement statement = getStatement();
+            if (statement != null) {
+                statements.add(statement);
             }
-            children.add(getStatement());
         }
-        return new NonTerminalNode("statements", children);
+        return statements;
     }
 
     /**
      * letStatement | ifStatement | whileStatement | doStatement | returnStatement
      */
-    public Node getStatement() {
-        Token next = tokenizer.peekToken();
-        switch (next.getValue()) {
-            case "let":
-                return getLetStatement();
-            case "if":
+    public Ast.Statement getStatement() {
+        int next = tokens.peek();
+        switch (tokens.getId(next)) {
+            case InternTable.LET:
+                return emit(getLetStatement());
+            case InternTable.IF:
                 return getIfStatement();
-            case "while":
+            case InternTable.WHILE:
                 return getWhileStatement();
-            case "do":
-                return getDoStatement();
-            case "return":
-                return getReturnStatement();
+            case InternTable.DO:
+                return emit(getDoStatement());
+            case InternTable.RETURN:
+                return emit(getReturnStatement());
             default:
-                throw new InvalidTokenException(next);
+                throw new InvalidTokenException(tokens.getToken(next));
         }
     }
 
     /**
      * 'var' type varName (',' varName)* ';'
      */
-    public Node getVarDec() {
-        List<Node> children = new ArrayList<>();
-
-        //var
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "var");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-
-        //type
-        Node type = getType();
-        children.add(type);
-
-        //varName
-        assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-        Token name = tokenizer.pollToken();
-        SYMBOL_TABLE.add(name.getValue(), SymbolTable.Kind.VAR, type.getValue());
-        children.add(new IdentifierTerminalNode(name.getValue(), "var", type.getValue(),
-                SYMBOL_TABLE.getIndex(name.getValue()), false));
-//        children.add(new TerminalNode(tokenizer.pollToken()));
-
-        while (true) {
-            if (tokenizer.peekToken().getValue().equals(";")) {
-                break;
-            }
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ",");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-
-            assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-            name = tokenizer.pollToken();
-            SYMBOL_TABLE.add(name.getValue(), SymbolTable.Kind.VAR, type.getValue());
-            children.add(new IdentifierTerminalNode(name.getValue(), SymbolTable.Kind.VAR.name(), type.getValue(),
-                    SYMBOL_TABLE.getIndex(name.getValue()), false));
-//            children.add(new TerminalNode(tokenizer.pollToken()));
+    public Ast.VarDec getVarDec() {
+        expect(Token.TokenType.KEYWORD, InternTable.VAR);
+        String type = getType();
+        List<Ast.Variable> variables = new ArrayList<>();
+        variables.add(declare(pollIdentifier(), SymbolTable.Kind.VAR, type));
+        while (!nextIs(InternTable.SEMICOLON)) {
+            expect(Token.TokenType.SYMBOL, InternTable.COMMA);
+            variables.add(declare(pollIdentifier(), SymbolTable.Kind.VAR, type));
         }
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ";");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        return new NonTerminalNode("varDec", children);
-    }
-
-    /**
-     * '{' varDec* statements '}'
-     */
-    public Node getSubroutineBody(String subroutineName, String subroutineType) {
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "{");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        while (tokenizer.peekToken().getValue().equals("var")) {
-            children.add(getVarDec());
-        }
-        int nLocal = CompilationEngine.SYMBOL_TABLE.indexMapping.get(SymbolTable.Kind.VAR);
-        Node statements = getStatements();
-        children.add(statements);
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "}");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        vmWriter.writeFunction(className + "." + subroutineName, nLocal);
-
-        // constructor always returns 'this'
-        if (subroutineType.equals("constructor")) {
-            int nClassVars = CompilationEngine.SYMBOL_TABLE.indexMapping.get(SymbolTable.Kind.FIELD);
-            vmWriter.writePush("constant", nClassVars);
-            vmWriter.writeCall("Memory.alloc", 1);
-            vmWriter.writePop("pointer", 0);
-        } else if (subroutineType.equals("method")) {
-            vmWriter.writePush("argument", 0);
-            vmWriter.writePop("pointer", 0);
-        }
-        vmWriter.writeStatements(statements);
-        return new NonTerminalNode("subroutineBody", children);
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.VarDec(type, variables);
     }
 
     /**
      * ( (type varName) (',' type varName)*)?
      */
-    public Node getParameterList() {
-        List<Node> children = new ArrayList<>();
-        while (!tokenizer.peekToken().getValue().equals(")")) {
-            if (!children.isEmpty()) {
-                assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ",");
-                children.add(new TerminalNode(tokenizer.pollToken())); // comma
+    public List<Ast.Variable> getParameterList() {
+        List<Ast.Variable> parameters = new ArrayList<>();
+        while (!nextIs(InternTable.RIGHT_PAREN)) {
+            if (!parameters.isEmpty()) {
+                expect(Token.TokenType.SYMBOL, InternTable.COMMA);
             }
-            Node type = getType();
-            children.add(type); // type
-
-            assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-            Token name = tokenizer.pollToken();
-            SYMBOL_TABLE.add(name.getValue(), SymbolTable.Kind.ARG, type.getValue());
-            children.add(new IdentifierTerminalNode(name.getValue(), SymbolTable.Kind.ARG.name(), type.getValue(),
-                    SYMBOL_TABLE.getIndex(name.getValue()), false)); // varName
+            String type = getType();
+            parameters.add(declare(pollIdentifier(), SymbolTable.Kind.ARG, type));
         }
-        return new NonTerminalNode("parameterList", children);
+        return parameters;
     }
 
     /**
      * ('constructor' | 'function' | 'method') ('void' | type) subroutineName '(' parameterList ')' subroutineBody
+     * <p>
+     * subroutineBody: '{' varDec* statements '}'
+     *
+     * @return null in direct emit mode
      */
-    public Node getSubroutineDec() {
-        SYMBOL_TABLE.resetFunctionSymbols();
-        List<Node> children = new ArrayList<>();
-        if (!Arrays.asList("constructor", "function", "method").contains(tokenizer.peekToken().getValue())) {
-            throw new InvalidTokenException(tokenizer.peekToken());
-        }
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD);
-        String subroutineType = tokenizer.peekToken().getValue();
-        children.add(new TerminalNode(tokenizer.pollToken()));
-
-        String type = "";
-        if (!tokenizer.peekToken().getValue().equals("void")) {
-            Node node = getType();
-            children.add(node); // type
-            type = node.getName();
+    public Ast.SubroutineDec getSubroutineDec(String className) {
+        symbolTable.startSubroutine();
+        if (!(nextIs(InternTable.CONSTRUCTOR) || nextIs(InternTable.FUNCTION) || nextIs(InternTable.METHOD))) {
+            throw new InvalidTokenException(tokens.getToken(tokens.peek()));
+        }
+        String subroutineType = tokens.getValue(tokens.poll());
+        String returnType;
+        if (nextIs(InternTable.VOID)) {
+            returnType = tokens.getValue(tokens.poll());
         } else {
-            assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD);
-            type = tokenizer.peekToken().getValue();
-            children.add(new TerminalNode(tokenizer.pollToken())); //void
-        }
-        assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-        String subroutineName = tokenizer.peekToken().getValue();
-        children.add(new IdentifierTerminalNode(tokenizer.pollToken().getValue(), subroutineType, type,
-                0, false)); // subroutineName
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "(");
-        children.add(new TerminalNode(tokenizer.pollToken()));
+            returnType = getType();
+        }
+        String subroutineName = pollIdentifier();
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_PAREN);
         if (subroutineType.equals("method")) {
-            CompilationEngine.SYMBOL_TABLE.add("this", SymbolTable.Kind.ARG, className);
+            symbolTable.define("this", SymbolTable.Kind.ARG, className);
+        }
+        List<Ast.Variable> parameters = getParameterList();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_PAREN);
+
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_BRACE);
+        List<Ast.VarDec> varDecs = new ArrayList<>();
+        while (nextIs(InternTable.VAR)) {
+            varDecs.add(getVarDec());
         }
-        Node params = getParameterList();
-        children.add(params);
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ")");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        children.add(getSubroutineBody(subroutineName, subroutineType)); // subroutineBody
-        return new NonTerminalNode("subroutineDec", children);
+        int nLocals = symbolTable.count(SymbolTable.Kind.VAR);
+        if (emitter != null) {
+            emitter.writeSubroutineStart(subroutineType, subroutineName, nLocals);
+        }
+        List<Ast.Statement> statements = getStatements();
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACE);
+        if (emitter != null) {
+            return null;
+        }
+        return new Ast.SubroutineDec(subroutineType, returnType, subroutineName, parameters, varDecs, statements,
+                nLocals);
     }
 
     /**
-     * ('static' | 'field' ) type varName (',' varName)* ';'
+     * ('static' | 'field' ) type varName (',' varName)* ';' | 'static' 'final' type varName '=' expression (','
+     * varName '=' expression)* ';'
+     * <p>
+     * 'final' is no keyword, 'static final' is a constant declaration if a type and a name follow, which is no valid
+     * static declaration.
      */
-    public Node getClassVarDec() {
-        List<Node> children = new ArrayList<>();
-        if (!Arrays.asList("static", "field").contains(tokenizer.peekToken().getValue())) {
-            throw new InvalidTokenException(tokenizer.peekToken());
-        }
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD);
-        Token kind = tokenizer.pollToken();
-        children.add(new TerminalNode(kind));
-        Node type = getType();
-        children.add(type); // type
-        assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-        Token name = tokenizer.pollToken();
-        SYMBOL_TABLE.add(name.getValue(), SymbolTable.Kind.getEnum(kind.getValue()), type.getValue());
-        children.add(new IdentifierTerminalNode(name.getValue(), kind.getValue(), type.getValue(),
-                SYMBOL_TABLE.getIndex(name.getValue()), false)); // varName
-        while (!tokenizer.peekToken().getValue().equals(";")) {
-            assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ",");
-            children.add(new TerminalNode(tokenizer.pollToken()));
-            assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-            name = tokenizer.pollToken();
-            SYMBOL_TABLE.add(name.getValue(), SymbolTable.Kind.getEnum(kind.getValue()), type.getValue());
-            children.add(new IdentifierTerminalNode(name.getValue(), kind.getValue(), type.getValue(),
-                    SYMBOL_TABLE.getIndex(name.getValue()), false)); // varName
-        }
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, ";");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        return new NonTerminalNode("classVarDec", children);
+    public Ast.ClassVarDec getClassVarDec() {
+        if (!(nextIs(InternTable.STATIC) || nextIs(InternTable.FIELD))) {
+            throw new InvalidTokenException(tokens.getToken(tokens.peek()));
+        }
+        String kind = tokens.getValue(tokens.poll());
+        if (kind.equals("static") && isConstantDec()) {
+            return getConstantDec();
+        }
+        String type = getType();
+        List<Ast.Variable> variables = new ArrayList<>();
+        variables.add(declare(pollIdentifier(), SymbolTable.Kind.getEnum(kind), type));
+        while (!nextIs(InternTable.SEMICOLON)) {
+            expect(Token.TokenType.SYMBOL, InternTable.COMMA);
+            variables.add(declare(pollIdentifier(), SymbolTable.Kind.getEnum(kind), type));
+        }
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.ClassVarDec(kind, type, variables, null);
+    }
+
+    // true if the next tokens are 'final' type varName
+    private boolean isConstantDec() {
+        int next = tokens.peek();
+        if (next + 2 >= tokens.size() || tokens.getType(next) != Token.TokenType.IDENTIFIER
+                || !tokens.getValue(next).equals("final")) {
+            return false;
+        }
+        int id = tokens.getId(next + 1);
+        if (id == InternTable.INT || id == InternTable.CHAR || id == InternTable.BOOLEAN) {
+            return true;
+        }
+        return tokens.getType(next + 1) == Token.TokenType.IDENTIFIER
+                && tokens.getType(next + 2) == Token.TokenType.IDENTIFIER;
+    }
+
+    // 'final' type varName '=' expression (',' varName '=' expression)* ';', after 'static'
+    private Ast.ClassVarDec getConstantDec() {
+        tokens.poll();
+        String type = getType();
+        List<Ast.Variable> variables = new ArrayList<>();
+        List<Ast.Expression> values = new ArrayList<>();
+        do {
+            if (!variables.isEmpty()) {
+                tokens.poll();
+            }
+            int token = tokens.peek();
+            String name = pollIdentifier();
+            expect(Token.TokenType.SYMBOL, InternTable.EQUALS);
+            Ast.Expression value = getExpression();
+            Integer constant = ConstantFolder.getConstant(ConstantFolder.fold(value));
+            if (constant == null) {
+                throw new InvalidTokenException(String.format("Value of constant '%s' at %d:%d is not constant", name,
+                        tokens.getLine(token), tokens.getColumn(token)));
+            }
+            SymbolTable.Entry entry = symbolTable.defineConstant(name, type, constant);
+            variables.add(new Ast.Variable(name, entry.kind, entry.type, entry.index));
+            values.add(value);
+        } while (nextIs(InternTable.COMMA));
+        expect(Token.TokenType.SYMBOL, InternTable.SEMICOLON);
+        return new Ast.ClassVarDec("static", type, variables, values);
     }
 
     /**
      * 'class' className '{' classVarDec* subroutineDec* '}'
      */
-    public Node getClassNode() {
-        SYMBOL_TABLE.resetClassSymbols();
-        SYMBOL_TABLE.resetFunctionSymbols();
-
-        List<Node> children = new ArrayList<>();
-        assertToken(tokenizer.peekToken(), Token.TokenType.KEYWORD, "class");
-        children.add(new TerminalNode(tokenizer.pollToken()));
-        assertToken(tokenizer.peekToken(), Token.TokenType.IDENTIFIER);
-        className = tokenizer.peekToken().getValue();
-        children.add(new IdentifierTerminalNode(tokenizer.pollToken().getValue(), "class", null, 0, false)); // className
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "{");
-        children.add(new TerminalNode(tokenizer.pollToken())); // '{'
-        while (true) {
-            if (!Arrays.asList("static", "field").contains(tokenizer.peekToken().getValue())) {
-                break;
-            }
-            children.add(getClassVarDec());
+    public Ast.ClassDec getClassDec() {
+        symbolTable.startClass();
+
+        expect(Token.TokenType.KEYWORD, InternTable.CLASS);
+        String className = pollIdentifier();
+        expect(Token.TokenType.SYMBOL, InternTable.LEFT_BRACE);
+        List<Ast.ClassVarDec> classVarDecs = new ArrayList<>();
+        while (nextIs(InternTable.STATIC) || nextIs(InternTable.FIELD)) {
+            classVarDecs.add(getClassVarDec());
         }
-        while (true) {
-            if (tokenizer.peekToken().getValue().equals("}")) {
-                break;
+        int nFields = symbolTable.count(SymbolTable.Kind.FIELD);
+        int nStatics = symbolTable.count(SymbolTable.Kind.STATIC);
+        if (emitter != null) {
+            emitter.setClass(className, nFields, nStatics);
+        }
+        List<Ast.SubroutineDec> subroutineDecs = new ArrayList<>();
+        while (!nextIs(InternTable.RIGHT_BRACE)) {
+            Ast.SubroutineDec subroutineDec = getSubroutineDec(className);
+            if (subroutineDec != null) {
+                subroutineDecs.add(subroutineDec);
             }
-            children.add(getSubroutineDec());
         }
-        assertToken(tokenizer.peekToken(), Token.TokenType.SYMBOL, "}");
-        children.add(new TerminalNode(tokenizer.pollToken())); // '}'
-        return new NonTerminalNode("class", children);
+        expect(Token.TokenType.SYMBOL, InternTable.RIGHT_BRACE);
+        if (emitter != null) {
+            emitter.writeClassEnd();
+        }
+        return new Ast.ClassDec(className, classVarDecs, subroutineDecs, nFields, nStatics);
     }
 
     /**
      * 'int' | 'char' | 'boolean' | className
      */
-    public Node getType() {
-        Token next = tokenizer.peekToken();
-        if (next.getTokenType().equals(Token.TokenType.KEYWORD)
-                && new HashSet<>(Arrays.asList("int", "char", "boolean")).contains(next.getValue())) {
-            return new TerminalNode(tokenizer.pollToken());
-        } else if (next.getTokenType().equals(Token.TokenType.IDENTIFIER)) {
-            return new IdentifierTerminalNode(tokenizer.pollToken().getValue(), "class", null, 0, false);
+    public String getType() {
+        int next = tokens.peek();
+        int id = tokens.getId(next);
+        if (id == InternTable.INT || id == InternTable.CHAR || id == InternTable.BOOLEAN) {
+            return tokens.getValue(tokens.poll());
+        } else if (tokens.getType(next) == Token.TokenType.IDENTIFIER) {
+            String className = tokens.getValue(tokens.poll());
+            classReferences.add(className);
+            return className;
         } else {
-            throw new InvalidTokenException(next);
+            throw new InvalidTokenException(tokens.getToken(next));
         }
     }
 }
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compiles one jack file. All per-class compiler state (tokens, interned strings, symbol table, VM writer) belongs to
+ * the unit, so units share nothing and several can be compiled at the same time.
+ */
+class CompilationUnit {
+    private final File jackFile;
+    private final InternTable strings = new InternTable();
+    private final SymbolTable symbolTable = new SymbolTable(strings);
+    private final List<String> messages = new ArrayList<>();
+    private final Set<String> classReferences = new TreeSet<>();
+    private String sourceHash;
+    private Ast.ClassDec classDec; // between parse and generate
+
+    CompilationUnit(File jackFile) {
+        this.jackFile = jackFile;
+    }
+
+    /**
+     * Writes output/&lt;class&gt;.vm next to the jack file, and the token and parse tree xml if requested
+     *
+     * @param options
+     * @return progress messages, in order
+     */
+    List<String> compile(CompileOptions options) {
+        parse(options);
+        return generate(options, null, null);
+    }
+
+    /**
+     * Parses the jack file and writes the token and parse tree xml if requested. In direct emit mode the VM code is
+     * written too, otherwise generate writes it from the parsed tree.
+     *
+     * @param options
+     */
+    void parse(CompileOptions options) {
+        File tokenFile = getOutputFile("T.xml");
+        File xmlFile = getOutputFile(".xml");
+        File vmFile = getOutputFile(".vm");
+
+        // tokenize once, the token xml and the parser read the same stream
+        TokenStream tokens = new Tokenizer(jackFile, strings).tokenize();
+        if (options.writeTokens) {
+            tokens.writeXml(tokenFile, options.indentWidth);
+            messages.add(String.format("Completed writing to '%s'", tokenFile));
+        }
+        if (options.directEmit) {
+            VMWriter vmWriter = new VMWriter(vmFile, options, null, null);
+            try {
+                CompilationEngine engine = new CompilationEngine(tokens, symbolTable, vmWriter);
+                engine.compileClass();
+                classReferences.addAll(engine.getClassReferences());
+            } finally {
+                vmWriter.close();
+            }
+            messages.add(String.format("Completed writing to '%s'", vmFile));
+            return;
+        }
+        CompilationEngine engine = new CompilationEngine(tokens, symbolTable);
+        classDec = engine.compileClass();
+        classReferences.addAll(engine.getClassReferences());
+        if (options.writeXml) {
+            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(xmlFile))) {
+                classDec.accept(new XmlWriter(bufferedWriter, options.indentWidth));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            messages.add(String.format("Completed writing to '%s'", xmlFile));
+        }
+    }
+
+    /**
+     * Writes output/&lt;class&gt;.vm from the parsed class, nothing is left to write in direct emit mode
+     *
+     * @param options
+     * @param reachable: VM names of the subroutines to write, e.g. Main.main, null for all
+     * @param inliner:   subroutines to inline, null for none
+     * @return progress messages of parse and generate, in order
+     */
+    List<String> generate(CompileOptions options, Set<String> reachable, Inliner inliner) {
+        if (classDec == null) {
+            return messages;
+        }
+        File vmFile = getOutputFile(".vm");
+        VMWriter vmWriter = new VMWriter(vmFile, options, reachable, inliner);
+        try {
+            classDec.accept(vmWriter);
+        } finally {
+            vmWriter.close();
+        }
+        if (reachable != null) {
+            long unreachable = classDec.subroutineDecs.stream()
+                    .filter(subroutineDec -> !reachable.contains(classDec.name + "." + subroutineDec.name)).count();
+            if (unreachable > 0) {
+                messages.add(String.format("Left out %d unreachable subroutines of '%s'", unreachable, classDec.name));
+            }
+        }
+        messages.add(String.format("Completed writing to '%s'", vmFile));
+        classDec = null;
+        return messages;
+    }
+
+    // the parsed class, null in direct emit mode
+    Ast.ClassDec getClassDec() {
+        return classDec;
+    }
+
+    /**
+     * Returns true if all files the options ask for were written
+     *
+     * @param options
+     * @return
+     */
+    boolean hasOutputs(CompileOptions options) {
+        return getOutputFile(".vm").exists() && (!options.writeTokens || getOutputFile("T.xml").exists())
+                && (!options.writeXml || getOutputFile(".xml").exists());
+    }
+
+    // name of the class, the jack file name without extension
+    String getClassName() {
+        return jackFile.getName().split("\\.")[0];
+    }
+
+    // hash of the jack file, read once
+    String getSourceHash() {
+        if (sourceHash == null) {
+            sourceHash = BuildCache.hash(jackFile);
+        }
+        return sourceHash;
+    }
+
+    // classes the class refers to, known after compile
+    Set<String> getClassReferences() {
+        return classReferences;
+    }
+
+    // output/<class><suffix> in the directory of the jack file
+    File getOutputFile(String suffix) {
+        return new File(String.format("%s%soutput%s%s%s", jackFile.getParent(), File.separator, File.separator,
+                getClassName(), suffix));
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Options of a compiler run that change what is written for a class
+ */
+class CompileOptions {
+    boolean writeTokens = false; // output/<class>T.xml
+    boolean writeXml = false; // output/<class>.xml
+    int indentWidth = 0; // spaces per nesting level in xml output
+    boolean directEmit = false; // write VM code while parsing, without building the tree of the class
+    boolean poolStrings = false; // build each string literal once and keep it in a static, see VMWriter
+    boolean wholeProgram = false; // parse all classes first and leave out subroutines no call reaches, see CallGraph
+    boolean inline = false; // inline getters, setters and small functions across classes, see Inliner
+    boolean branchLayout = false; // if jumps on the negated condition, loops test at the bottom, see VMWriter
+    boolean shareLocals = false; // local variables that are never live at the same time share a slot, see LocalSlots
+    boolean freeLists = false; // constructors reuse objects 'Memory.deAlloc(this)' put on a per class list, see VMWriter
+
+    /**
+     * Returns the options as one string, outputs written with different keys may differ
+     *
+     * @return
+     */
+    String getKey() {
+        return String.format("tokens=%b xml=%b indent=%d direct=%b pool-strings=%b whole-program=%b inline=%b "
+                        + "branch-layout=%b share-locals=%b free-lists=%b", writeTokens, writeXml, indentWidth,
+                directEmit, poolStrings, wholeProgram, inline, branchLayout, shareLocals, freeLists);
+    }
+}
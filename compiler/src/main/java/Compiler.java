@@ -1,14 +1,83 @@
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Main class
+ * <p>
+ * Usage: Compiler &lt;file.jack or directory&gt; [--tokens] [--xml] [--indent N] [--jobs N] [--direct] [--pool-strings]
+ * [--whole-program] [--inline] [--branch-layout] [--share-locals] [--free-lists] [--rebuild]
+ * <ul>
+ * <li>--tokens: also write the token xml (output/&lt;class&gt;T.xml)</li>
+ * <li>--xml: also write the parse tree xml (output/&lt;class&gt;.xml)</li>
+ * <li>--indent N: indent nested xml elements by N spaces, default 0</li>
+ * <li>--jobs N: compile up to N files at the same time, default 1</li>
+ * <li>--direct: write VM code while parsing, without building a syntax tree per class (not with --xml)</li>
+ * <li>--pool-strings: build each string literal once per class and reuse it, literals must not be changed or
+ * disposed</li>
+ * <li>--whole-program: parse all files before writing any VM code, and leave out subroutines that can't be reached
+ * from Main.main (not with --direct)</li>
+ * <li>--inline: replace calls of getters, setters and small functions with their bodies, implies --whole-program</li>
+ * <li>--branch-layout: one conditional jump per if statement and per loop iteration, loops test at the bottom</li>
+ * <li>--share-locals: local variables whose values are never needed at the same time share a slot, for smaller
+ * frames (not with --direct)</li>
+ * <li>--free-lists: objects a class disposes with Memory.deAlloc(this) go on a free list of the class, which its
+ * constructors take objects from before calling Memory.alloc; the memory is never given back to the heap</li>
+ * <li>--rebuild: compile all files, even those the build cache (output/.jackcache) finds up to date</li>
+ * </ul>
+ * Files whose source, referenced classes, compiler build and options are unchanged since the last run are skipped,
+ * their outputs are reused, see BuildCache.
  */
 public class Compiler {
-    public static void main(String[] args) {
-        String inputPath = args[0];//"/home/amit/Software/nand2tetris/projects/11/Square";
+    public static void main(String[] args) throws InterruptedException {
+        String inputPath = null;//"/home/amit/Software/nand2tetris/projects/11/Square";
+        CompileOptions options = new CompileOptions();
+        int jobs = 1;
+        boolean rebuild = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--tokens")) {
+                options.writeTokens = true;
+            } else if (args[i].equals("--xml")) {
+                options.writeXml = true;
+            } else if (args[i].equals("--indent")) {
+                options.indentWidth = Integer.valueOf(args[++i]);
+            } else if (args[i].equals("--jobs")) {
+                jobs = Integer.valueOf(args[++i]);
+            } else if (args[i].equals("--direct")) {
+                options.directEmit = true;
+            } else if (args[i].equals("--pool-strings")) {
+                options.poolStrings = true;
+            } else if (args[i].equals("--whole-program")) {
+                options.wholeProgram = true;
+            } else if (args[i].equals("--inline")) {
+                options.inline = true;
+                options.wholeProgram = true;
+            } else if (args[i].equals("--branch-layout")) {
+                options.branchLayout = true;
+            } else if (args[i].equals("--share-locals")) {
+                options.shareLocals = true;
+            } else if (args[i].equals("--free-lists")) {
+                options.freeLists = true;
+            } else if (args[i].equals("--rebuild")) {
+                rebuild = true;
+            } else {
+                inputPath = args[i];
+            }
+        }
+        if (options.directEmit && options.writeXml) {
+            throw new IllegalArgumentException("--direct builds no syntax tree, it can't be combined with --xml");
+        }
+        if (options.directEmit && options.wholeProgram) {
+            throw new IllegalArgumentException("--whole-program needs the syntax trees, it can't be combined with --direct");
+        }
+        if (options.directEmit && options.shareLocals) {
+            throw new IllegalArgumentException("--share-locals needs the syntax trees, it can't be combined with --direct");
+        }
         File inputFIle = new File(inputPath);
 
         List<File> jackFiles = new ArrayList<>();
@@ -19,30 +88,100 @@ public class Compiler {
         if (!inputFIle.isDirectory()) {
             jackFiles.add(inputFIle);
         } else {
-            Arrays.asList(inputFIle.listFiles()).stream().filter(file -> file.toString().endsWith(".jack"))
-                    .forEach(jackFiles::add);
+            jackFiles = Arrays.stream(inputFIle.listFiles()).filter(file -> file.toString().endsWith(".jack"))
+                    .sorted().collect(Collectors.toList());
         }
 
+        List<CompilationUnit> units = new ArrayList<>();
         for (File jackFile : jackFiles) {
-            File tokenFile = new File(String.format("%s%soutput%s%sT.xml", jackFile.getParent(), File.separator,
-                    File.separator, jackFile.getName().split("\\.")[0]));
-            tokenFile.getParentFile().mkdir();
-            File xmlFile = new File(String.format("%s%soutput%s%s.xml", jackFile.getParent(), File.separator,
-                    File.separator, jackFile.getName().split("\\.")[0]));
-            xmlFile.getParentFile().mkdir();
-            File vmFile = new File(String.format("%s%soutput%s%s.vm", jackFile.getParent(), File.separator,
-                    File.separator, jackFile.getName().split("\\.")[0]));
-            Tokenizer tokenizer = new Tokenizer(jackFile);
-            tokenizer.write(tokenFile);
-            VMWriter vmWriter = new VMWriter(vmFile);
-            CompilationEngine parser = new CompilationEngine(new Tokenizer(jackFile), vmWriter);
-            parser.writeXml(xmlFile);
-//            parser.writeVm();
-            System.out.println(String.format("Completed writing to '%s'", tokenFile));
-            System.out.println(String.format("Completed writing to '%s'", xmlFile));
-            System.out.println(String.format("Completed writing to '%s'", vmFile));
+            CompilationUnit unit = new CompilationUnit(jackFile);
+            unit.getOutputFile(".vm").getParentFile().mkdir();
+            units.add(unit);
+        }
+
+        // only compile what changed since the last run
+        BuildCache cache = null;
+        List<CompilationUnit> stale = units;
+        if (!units.isEmpty()) {
+            cache = new BuildCache(units.get(0).getOutputFile(".vm").getParentFile(), options.getKey());
+            Map<String, String> sourceHashes = new TreeMap<>();
+            for (CompilationUnit unit : units) {
+                sourceHashes.put(unit.getClassName(), unit.getSourceHash());
+            }
+            Set<String> toCompile = cache.getClassesToCompile(sourceHashes, inputFIle.isDirectory());
+            stale = new ArrayList<>();
+            for (CompilationUnit unit : units) {
+                if (rebuild || toCompile.contains(unit.getClassName()) || !unit.hasOutputs(options)) {
+                    stale.add(unit);
+                }
+            }
+            // which subroutines are reachable depends on every class
+            if (options.wholeProgram && !stale.isEmpty()) {
+                stale = units;
+            }
+            for (CompilationUnit unit : units) {
+                if (!stale.contains(unit)) {
+                    System.out.println(String.format("Skipped '%s', up to date", unit.getOutputFile(".vm")));
+                }
+            }
+        }
+
+        if (options.wholeProgram) {
+            runAll(stale, jobs, unit -> {
+                unit.parse(options);
+                return Collections.emptyList();
+            });
+            List<Ast.ClassDec> classDecs = stale.stream().map(CompilationUnit::getClassDec).collect(Collectors.toList());
+            Inliner inliner = options.inline ? new Inliner(classDecs) : null;
+            CallGraph callGraph = new CallGraph(inliner);
+            classDecs.forEach(callGraph::add);
+            Set<String> reachable = callGraph.getReachable();
+            runAll(stale, jobs, unit -> unit.generate(options, reachable, inliner));
+        } else {
+            runAll(stale, jobs, unit -> unit.compile(options));
+        }
+        if (cache != null) {
+            for (CompilationUnit unit : stale) {
+                cache.update(unit.getClassName(), unit.getSourceHash(), unit.getClassReferences());
+            }
+            cache.save();
         }
         System.out.println("Compilation completed successfully!");
     }
-}
 
+    /**
+     * Runs a task on each unit, on up to jobs threads, and prints the messages it returns in unit order
+     *
+     * @param units
+     * @param jobs
+     * @param task
+     * @throws InterruptedException
+     */
+    private static void runAll(List<CompilationUnit> units, int jobs, Function<CompilationUnit, List<String>> task)
+            throws InterruptedException {
+        if (jobs <= 1) {
+            for (CompilationUnit unit : units) {
+                task.apply(unit).forEach(System.out::println);
+            }
+        } else {
+            // messages are printed in file order, whatever order the units finish in
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, Math.max(units.size(), 1)));
+            try {
+                List<Future<List<String>>> results = new ArrayList<>();
+                for (CompilationUnit unit : units) {
+                    results.add(executor.submit(() -> task.apply(unit)));
+                }
+                for (Future<List<String>> result : results) {
+                    result.get().forEach(System.out::println);
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
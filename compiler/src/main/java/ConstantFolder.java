@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Folds constant subexpressions and simplifies algebraic identities before VM code is generated. The tree built by
+ * CompilationEngine is left as it is, changed nodes are copied, so xml output still shows the source.
+ * <p>
+ * Jack evaluates operands left to right and the VM works on 16 bit two's complement values, folding follows both:
+ * results wrap to 16 bits, an operand is only dropped when it has no side effects, and nothing is folded whose value
+ * could differ at run time (division by zero or of -32768 by -1, comparisons whose operands are too far apart for a
+ * VM comparing by subtraction).
+ * <p>
+ * Constants declared 'static final' are replaced with their values.
+ */
+class ConstantFolder {
+    private ConstantFolder() {
+    }
+
+    /**
+     * Returns the simplified expression, the given one if nothing could be simplified
+     *
+     * @param expression
+     * @return
+     */
+    static Ast.Expression fold(Ast.Expression expression) {
+        if (expression instanceof Ast.BinaryExpr) {
+            Ast.BinaryExpr binaryExpr = (Ast.BinaryExpr) expression;
+            return foldBinary(binaryExpr.op, fold(binaryExpr.left), fold(binaryExpr.right), binaryExpr);
+        } else if (expression instanceof Ast.UnaryExpr) {
+            Ast.UnaryExpr unaryExpr = (Ast.UnaryExpr) expression;
+            return foldUnary(unaryExpr.op, fold(unaryExpr.operand), unaryExpr);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return fold(((Ast.ParenExpr) expression).expression);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            Ast.ArrayExpr arrayExpr = (Ast.ArrayExpr) expression;
+            Ast.Expression index = fold(arrayExpr.index);
+            return index == arrayExpr.index ? arrayExpr : new Ast.ArrayExpr(arrayExpr.array, index);
+        } else if (expression instanceof Ast.CallExpr) {
+            return foldCall((Ast.CallExpr) expression);
+        } else if (expression instanceof Ast.VarExpr
+                && ((Ast.VarExpr) expression).variable.kind == SymbolTable.Kind.CONSTANT) {
+            return constant(((Ast.VarExpr) expression).variable.index);
+        }
+        return expression;
+    }
+
+    /**
+     * Folds the arguments of a call
+     *
+     * @param call
+     * @return
+     */
+    static Ast.CallExpr foldCall(Ast.CallExpr call) {
+        List<Ast.Expression> arguments = null;
+        for (int i = 0; i < call.arguments.size(); i++) {
+            Ast.Expression argument = fold(call.arguments.get(i));
+            if (argument != call.arguments.get(i) && arguments == null) {
+                arguments = new ArrayList<>(call.arguments.subList(0, i));
+            }
+            if (arguments != null) {
+                arguments.add(argument);
+            }
+        }
+        return arguments == null ? call : new Ast.CallExpr(call.receiver, call.className, call.name, arguments);
+    }
+
+    private static Ast.Expression foldUnary(char op, Ast.Expression operand, Ast.UnaryExpr original) {
+        Integer value = getConstant(operand);
+        if (value != null) {
+            return constant(op == '-' ? -value : ~value);
+        }
+        // --x and ~~x
+        if (operand instanceof Ast.UnaryExpr && ((Ast.UnaryExpr) operand).op == op) {
+            return ((Ast.UnaryExpr) operand).operand;
+        }
+        return operand == original.operand ? original : new Ast.UnaryExpr(op, operand);
+    }
+
+    private static Ast.Expression foldBinary(char op, Ast.Expression left, Ast.Expression right,
+                                             Ast.BinaryExpr original) {
+        Integer leftValue = getConstant(left);
+        Integer rightValue = getConstant(right);
+        if (leftValue != null && rightValue != null) {
+            Ast.Expression folded = evaluate(op, leftValue, rightValue);
+            if (folded != null) {
+                return folded;
+            }
+        } else if (rightValue != null) {
+            Ast.Expression simplified = simplifyRight(op, left, rightValue);
+            if (simplified != null) {
+                return simplified;
+            }
+        } else if (leftValue != null) {
+            Ast.Expression simplified = simplifyLeft(op, leftValue, right);
+            if (simplified != null) {
+                return simplified;
+            }
+        }
+        if (left == original.left && right == original.right) {
+            return original;
+        }
+        return new Ast.BinaryExpr(op, left, right);
+    }
+
+    // c op d, null if it can't be folded safely
+    private static Ast.Expression evaluate(char op, int c, int d) {
+        switch (op) {
+            case '+':
+                return constant(c + d);
+            case '-':
+                return constant(c - d);
+            case '*':
+                return constant(c * d);
+            case '/':
+                if (d == 0 || (c == Short.MIN_VALUE && d == -1)) {
+                    return null;
+                }
+                return constant(c / d);
+            case '&':
+                return constant(c & d);
+            case '|':
+                return constant(c | d);
+            case '<':
+            case '>':
+            case '=':
+                if (Math.abs(c - d) > Short.MAX_VALUE) {
+                    return null;
+                }
+                return constant(op == '<' ? (c < d ? -1 : 0) : op == '>' ? (c > d ? -1 : 0) : (c == d ? -1 : 0));
+            default:
+                return null;
+        }
+    }
+
+    // x op c, null if there is no simpler form
+    private static Ast.Expression simplifyRight(char op, Ast.Expression left, int c) {
+        switch (op) {
+            case '+':
+            case '-':
+                // (x + c1) + c2 is x + (c1 + c2), left to right order is kept as constants have no side effects
+                int offset = op == '+' ? c : -c;
+                if (left instanceof Ast.BinaryExpr) {
+                    Ast.BinaryExpr inner = (Ast.BinaryExpr) left;
+                    Integer innerValue = getConstant(inner.right);
+                    if (innerValue != null && (inner.op == '+' || inner.op == '-')) {
+                        return offset(inner.left, (inner.op == '+' ? innerValue : -innerValue) + offset);
+                    }
+                }
+                return (short) offset == 0 ? left : null;
+            case '*':
+                if (c == 1) {
+                    return left;
+                }
+                return c == 0 && isPure(left) ? constant(0) : null;
+            case '/':
+                return c == 1 ? left : null;
+            case '&':
+                if (c == -1) {
+                    return left;
+                }
+                return c == 0 && isPure(left) ? constant(0) : null;
+            case '|':
+                if (c == 0) {
+                    return left;
+                }
+                return c == -1 && isPure(left) ? constant(-1) : null;
+            default:
+                return null;
+        }
+    }
+
+    // c op x, null if there is no simpler form
+    private static Ast.Expression simplifyLeft(char op, int c, Ast.Expression right) {
+        switch (op) {
+            case '+':
+                return c == 0 ? right : null;
+            case '-':
+                return c == 0 ? new Ast.UnaryExpr('-', right) : null;
+            case '*':
+                if (c == 1) {
+                    return right;
+                }
+                return c == 0 && isPure(right) ? constant(0) : null;
+            case '&':
+                if (c == -1) {
+                    return right;
+                }
+                return c == 0 && isPure(right) ? constant(0) : null;
+            case '|':
+                if (c == 0) {
+                    return right;
+                }
+                return c == -1 && isPure(right) ? constant(-1) : null;
+            default:
+                return null;
+        }
+    }
+
+    // x + offset, written as x - c for a negative offset so the constant needs no neg
+    private static Ast.Expression offset(Ast.Expression expression, int offset) {
+        short value = (short) offset;
+        if (value == 0) {
+            return expression;
+        } else if (value < 0 && value != Short.MIN_VALUE) {
+            return new Ast.BinaryExpr('-', expression, new Ast.IntegerExpr(-value));
+        }
+        return new Ast.BinaryExpr('+', expression, new Ast.IntegerExpr(value));
+    }
+
+    // 16 bit value of an expression, null if it is not constant
+    static Integer getConstant(Ast.Expression expression) {
+        if (expression instanceof Ast.IntegerExpr) {
+            int value = ((Ast.IntegerExpr) expression).value;
+            return value <= Short.MAX_VALUE ? value : null;
+        } else if (expression instanceof Ast.KeywordExpr) {
+            switch (((Ast.KeywordExpr) expression).keyword) {
+                case "true":
+                    return -1;
+                case "false":
+                case "null":
+                    return 0;
+            }
+        } else if (expression instanceof Ast.VarExpr
+                && ((Ast.VarExpr) expression).variable.kind == SymbolTable.Kind.CONSTANT) {
+            return ((Ast.VarExpr) expression).variable.index;
+        }
+        return null;
+    }
+
+    private static Ast.IntegerExpr constant(int value) {
+        return new Ast.IntegerExpr((short) value);
+    }
+
+    // true if evaluating the expression has no side effects: no calls, and no strings, which are allocated
+    static boolean isPure(Ast.Expression expression) {
+        if (expression instanceof Ast.BinaryExpr) {
+            return isPure(((Ast.BinaryExpr) expression).left) && isPure(((Ast.BinaryExpr) expression).right);
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return isPure(((Ast.UnaryExpr) expression).operand);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return isPure(((Ast.ParenExpr) expression).expression);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            return isPure(((Ast.ArrayExpr) expression).index);
+        }
+        return !(expression instanceof Ast.CallExpr || expression instanceof Ast.StringExpr);
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the subroutines of a whole program that are cheaper to inline at their call sites than to call:
+ * <ul>
+ * <li>getters and small pure functions, whose body is 'return expression;'</li>
+ * <li>setters, whose body is 'let variable = expression; return;', inlined in do statements</li>
+ * </ul>
+ * The expression may only read constants, arguments, fields and statics and combine them with operators other than
+ * '*' and '/', which are calls themselves. It has no calls, array accesses or strings, so evaluating it has no side
+ * effects, and at most MAX_NODES nodes. Statics can only be read in the class that declares them, as the VM gives each
+ * class file its own static segment.
+ * <p>
+ * VMWriter evaluates the receiver and the arguments of an inlined call in the same order as for a call, then moves
+ * the arguments to temp slots from FIRST_TEMP on and the receiver to pointer 1, where the body reads them.
+ */
+class Inliner {
+    static final int FIRST_TEMP = 3; // temp 0 to 2 are used by VMWriter
+    private static final int MAX_ARGUMENTS = 8 - FIRST_TEMP;
+    private static final int MAX_NODES = 8;
+
+    private final Map<String, Ast.SubroutineDec> subroutines = new HashMap<>(); // by VM name
+    private final Map<String, Boolean> readsStatics = new HashMap<>();
+
+    /**
+     * @param classDecs: all classes of the program
+     */
+    Inliner(List<Ast.ClassDec> classDecs) {
+        for (Ast.ClassDec classDec : classDecs) {
+            for (Ast.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+                Ast.Expression expression = getBody(subroutineDec);
+                boolean method = subroutineDec.kind.equals("method");
+                int nArguments = subroutineDec.parameters.size();
+                if (expression != null && nArguments <= MAX_ARGUMENTS && isSimple(expression, method)
+                        && count(expression) <= MAX_NODES) {
+                    String function = classDec.name + "." + subroutineDec.name;
+                    subroutines.put(function, subroutineDec);
+                    readsStatics.put(function, usesStatics(subroutineDec));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the subroutine a call can be replaced with
+     *
+     * @param call
+     * @param className: class the call is made in
+     * @return null if the subroutine must be called
+     */
+    Ast.SubroutineDec get(Ast.CallExpr call, String className) {
+        String function = call.getFunction(className);
+        Ast.SubroutineDec subroutineDec = subroutines.get(function);
+        if (subroutineDec == null || subroutineDec.parameters.size() != call.arguments.size()
+                || subroutineDec.kind.equals("method") != (call.className == null)
+                || (readsStatics.get(function) && !function.startsWith(className + "."))) {
+            return null;
+        }
+        return subroutineDec;
+    }
+
+    /**
+     * Returns the value an inlinable subroutine returns
+     *
+     * @param subroutineDec
+     * @return null for a setter
+     */
+    static Ast.Expression getReturnValue(Ast.SubroutineDec subroutineDec) {
+        Ast.Statement statement = subroutineDec.statements.get(0);
+        return statement instanceof Ast.ReturnStatement ? ((Ast.ReturnStatement) statement).value : null;
+    }
+
+    /**
+     * Returns the assignment of an inlinable setter
+     *
+     * @param subroutineDec
+     * @return
+     */
+    static Ast.LetStatement getAssignment(Ast.SubroutineDec subroutineDec) {
+        return (Ast.LetStatement) subroutineDec.statements.get(0);
+    }
+
+    // the returned or assigned expression, null if the body has another form
+    private static Ast.Expression getBody(Ast.SubroutineDec subroutineDec) {
+        if (subroutineDec.kind.equals("constructor")) {
+            return null;
+        }
+        List<Ast.Statement> statements = subroutineDec.statements;
+        if (statements.size() == 1 && statements.get(0) instanceof Ast.ReturnStatement) {
+            return ((Ast.ReturnStatement) statements.get(0)).value;
+        } else if (statements.size() == 2 && statements.get(0) instanceof Ast.LetStatement
+                && statements.get(1) instanceof Ast.ReturnStatement
+                && ((Ast.ReturnStatement) statements.get(1)).value == null) {
+            Ast.LetStatement letStatement = (Ast.LetStatement) statements.get(0);
+            SymbolTable.Kind kind = letStatement.variable.kind;
+            boolean assignable = kind == SymbolTable.Kind.STATIC
+                    || (kind == SymbolTable.Kind.FIELD && subroutineDec.kind.equals("method"));
+            return assignable && letStatement.index == null ? letStatement.value : null;
+        }
+        return null;
+    }
+
+    private static boolean isSimple(Ast.Expression expression, boolean method) {
+        if (expression instanceof Ast.IntegerExpr) {
+            return true;
+        } else if (expression instanceof Ast.KeywordExpr) {
+            return method || !((Ast.KeywordExpr) expression).keyword.equals("this");
+        } else if (expression instanceof Ast.VarExpr) {
+            SymbolTable.Kind kind = ((Ast.VarExpr) expression).variable.kind;
+            return kind == SymbolTable.Kind.ARG || kind == SymbolTable.Kind.STATIC || kind == SymbolTable.Kind.CONSTANT
+                    || (kind == SymbolTable.Kind.FIELD && method);
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return isSimple(((Ast.UnaryExpr) expression).operand, method);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            Ast.BinaryExpr binaryExpr = (Ast.BinaryExpr) expression;
+            return binaryExpr.op != '*' && binaryExpr.op != '/' && isSimple(binaryExpr.left, method)
+                    && isSimple(binaryExpr.right, method);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return isSimple(((Ast.ParenExpr) expression).expression, method);
+        }
+        return false;
+    }
+
+    private static int count(Ast.Expression expression) {
+        if (expression instanceof Ast.UnaryExpr) {
+            return 1 + count(((Ast.UnaryExpr) expression).operand);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            return 1 + count(((Ast.BinaryExpr) expression).left) + count(((Ast.BinaryExpr) expression).right);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return count(((Ast.ParenExpr) expression).expression);
+        }
+        return 1;
+    }
+
+    private static boolean usesStatics(Ast.SubroutineDec subroutineDec) {
+        Ast.Expression returnValue = getReturnValue(subroutineDec);
+        if (returnValue == null) {
+            return getAssignment(subroutineDec).variable.kind == SymbolTable.Kind.STATIC
+                    || usesStatics(getAssignment(subroutineDec).value);
+        }
+        return usesStatics(returnValue);
+    }
+
+    private static boolean usesStatics(Ast.Expression expression) {
+        if (expression instanceof Ast.VarExpr) {
+            return ((Ast.VarExpr) expression).variable.kind == SymbolTable.Kind.STATIC;
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return usesStatics(((Ast.UnaryExpr) expression).operand);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            return usesStatics(((Ast.BinaryExpr) expression).left) || usesStatics(((Ast.BinaryExpr) expression).right);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return usesStatics(((Ast.ParenExpr) expression).expression);
+        }
+        return false;
+    }
+}
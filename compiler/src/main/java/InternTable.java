@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Per-compilation table of interned keyword, symbol and identifier strings. Each distinct string gets a small int id,
+ * so tokens can be compared with == instead of String.equals. Keywords and symbols are interned first, in a fixed
+ * order, which gives them the id constants below.
+ */
+class InternTable {
+    private static final String[] PREDEFINED = {"class", "constructor", "function", "method", "field", "static",
+            "var", "int", "char", "boolean", "void", "true", "false", "null", "this", "let", "do", "if", "else",
+            "while", "return", "{", "}", "(", ")", "[", "]", ".", ",", ";", "+", "-", "*", "/", "&", "|", "<", ">",
+            "=", "~"};
+
+    // keywords
+    static final int CLASS = 0;
+    static final int CONSTRUCTOR = 1;
+    static final int FUNCTION = 2;
+    static final int METHOD = 3;
+    static final int FIELD = 4;
+    static final int STATIC = 5;
+    static final int VAR = 6;
+    static final int INT = 7;
+    static final int CHAR = 8;
+    static final int BOOLEAN = 9;
+    static final int VOID = 10;
+    static final int TRUE = 11;
+    static final int FALSE = 12;
+    static final int NULL = 13;
+    static final int THIS = 14;
+    static final int LET = 15;
+    static final int DO = 16;
+    static final int IF = 17;
+    static final int ELSE = 18;
+    static final int WHILE = 19;
+    static final int RETURN = 20;
+
+    // symbols
+    static final int LEFT_BRACE = 21;
+    static final int RIGHT_BRACE = 22;
+    static final int LEFT_PAREN = 23;
+    static final int RIGHT_PAREN = 24;
+    static final int LEFT_BRACKET = 25;
+    static final int RIGHT_BRACKET = 26;
+    static final int DOT = 27;
+    static final int COMMA = 28;
+    static final int SEMICOLON = 29;
+    static final int PLUS = 30; // binary operators are PLUS..EQUALS
+    static final int MINUS = 31;
+    static final int ASTERISK = 32;
+    static final int SLASH = 33;
+    static final int AMPERSAND = 34;
+    static final int BAR = 35;
+    static final int LESS_THAN = 36;
+    static final int GREATER_THAN = 37;
+    static final int EQUALS = 38;
+    static final int TILDE = 39;
+
+    private String[] strings = new String[256];
+    private int[] hashes = new int[256];
+    private int[] slots = new int[512]; // open addressing hash table of id + 1, 0 for an empty slot
+    private int size = 0;
+
+    InternTable() {
+        for (String string : PREDEFINED) {
+            intern(string);
+        }
+    }
+
+    static boolean isKeyword(int id) {
+        return id >= CLASS && id <= RETURN;
+    }
+
+    static boolean isBinaryOperator(int id) {
+        return id >= PLUS && id <= EQUALS;
+    }
+
+    /**
+     * Returns id of the string chars[start, start + length), adding it to the table if it is new
+     *
+     * @param chars
+     * @param start
+     * @param length
+     * @return
+     */
+    int intern(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        hash ^= hash >>> 16;
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return add(new String(chars, start, length), hash, slot);
+            }
+            if (hashes[id] == hash && regionMatches(strings[id], chars, start, length)) {
+                return id;
+            }
+        }
+    }
+
+    int intern(String string) {
+        return intern(string.toCharArray(), 0, string.length());
+    }
+
+    /**
+     * Returns the string with the given id
+     *
+     * @param id
+     * @return
+     */
+    String get(int id) {
+        return strings[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean regionMatches(String string, char[] chars, int start, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(String string, int hash, int slot) {
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        strings[id] = string;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+}
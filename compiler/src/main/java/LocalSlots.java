@@ -0,0 +1,148 @@
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Assigns the local variables of a subroutine to local slots, so variables whose values are never needed at the same
+ * time share a slot and the frame is smaller.
+ * <p>
+ * A variable is live where its value may still be read. Liveness is found backwards over the statements, loops are
+ * repeated until it doesn't change. Assigning a variable writes its slot, so it conflicts with every other variable
+ * live after the assignment; the rest can share slots, which are given in declaration order.
+ * <p>
+ * The function command sets all slots to 0, and a variable that is read before it is assigned reads that 0: it is
+ * live from the start, so no other variable is assigned in its slot before that read.
+ */
+class LocalSlots {
+    private final BitSet[] conflicts; // by variable index
+    private final int[] slots;
+    private int nSlots = 0;
+
+    /**
+     * @param subroutineDec
+     */
+    LocalSlots(Ast.SubroutineDec subroutineDec) {
+        int nLocals = subroutineDec.nLocals;
+        conflicts = new BitSet[nLocals];
+        for (int i = 0; i < nLocals; i++) {
+            conflicts[i] = new BitSet(nLocals);
+        }
+        getLiveIn(subroutineDec.statements, new BitSet(nLocals));
+
+        slots = new int[nLocals];
+        for (int i = 0; i < nLocals; i++) {
+            BitSet used = new BitSet();
+            for (int j = conflicts[i].nextSetBit(0); j >= 0 && j < i; j = conflicts[i].nextSetBit(j + 1)) {
+                used.set(slots[j]);
+            }
+            slots[i] = used.nextClearBit(0);
+            nSlots = Math.max(nSlots, slots[i] + 1);
+        }
+    }
+
+    /**
+     * Returns the slot of a local variable
+     *
+     * @param index: index of the variable in the symbol table
+     * @return
+     */
+    int getSlot(int index) {
+        return slots[index];
+    }
+
+    /**
+     * Returns the number of slots, the nLocals of the function
+     *
+     * @return
+     */
+    int getCount() {
+        return nSlots;
+    }
+
+    // variables live before the statements, given those live after them
+    private BitSet getLiveIn(List<Ast.Statement> statements, BitSet liveOut) {
+        BitSet live = liveOut;
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            live = getLiveIn(statements.get(i), live);
+        }
+        return live;
+    }
+
+    private BitSet getLiveIn(Ast.Statement statement, BitSet liveOut) {
+        BitSet live = (BitSet) liveOut.clone();
+        if (statement instanceof Ast.LetStatement) {
+            Ast.LetStatement letStatement = (Ast.LetStatement) statement;
+            if (letStatement.index != null) {
+                addUse(letStatement.variable, live);
+                addUses(letStatement.index, live);
+            } else if (letStatement.variable.kind == SymbolTable.Kind.VAR) {
+                int index = letStatement.variable.index;
+                conflicts[index].or(liveOut);
+                for (int i = liveOut.nextSetBit(0); i >= 0; i = liveOut.nextSetBit(i + 1)) {
+                    conflicts[i].set(index);
+                }
+                live.clear(index);
+            }
+            addUses(letStatement.value, live);
+        } else if (statement instanceof Ast.IfStatement) {
+            Ast.IfStatement ifStatement = (Ast.IfStatement) statement;
+            live = getLiveIn(ifStatement.thenStatements, liveOut);
+            if (ifStatement.elseStatements != null) {
+                live.or(getLiveIn(ifStatement.elseStatements, liveOut));
+            } else {
+                live.or(liveOut);
+            }
+            addUses(ifStatement.condition, live);
+        } else if (statement instanceof Ast.WhileStatement) {
+            // live at the condition: after the loop, or in the body, which goes back to the condition
+            Ast.WhileStatement whileStatement = (Ast.WhileStatement) statement;
+            addUses(whileStatement.condition, live);
+            while (true) {
+                BitSet next = getLiveIn(whileStatement.statements, live);
+                next.or(live);
+                if (next.equals(live)) {
+                    break;
+                }
+                live = next;
+            }
+        } else if (statement instanceof Ast.DoStatement) {
+            addUses(((Ast.DoStatement) statement).call, live);
+        } else if (statement instanceof Ast.ReturnStatement) {
+            live.clear(); // nothing after a return runs
+            Ast.Expression value = ((Ast.ReturnStatement) statement).value;
+            if (value != null) {
+                addUses(value, live);
+            }
+        }
+        return live;
+    }
+
+    private static void addUses(Ast.Expression expression, BitSet live) {
+        if (expression instanceof Ast.VarExpr) {
+            addUse(((Ast.VarExpr) expression).variable, live);
+        } else if (expression instanceof Ast.ArrayExpr) {
+            addUse(((Ast.ArrayExpr) expression).array, live);
+            addUses(((Ast.ArrayExpr) expression).index, live);
+        } else if (expression instanceof Ast.CallExpr) {
+            Ast.CallExpr call = (Ast.CallExpr) expression;
+            if (call.receiver != null) {
+                addUse(call.receiver, live);
+            }
+            for (Ast.Expression argument : call.arguments) {
+                addUses(argument, live);
+            }
+        } else if (expression instanceof Ast.UnaryExpr) {
+            addUses(((Ast.UnaryExpr) expression).operand, live);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            addUses(((Ast.BinaryExpr) expression).left, live);
+            addUses(((Ast.BinaryExpr) expression).right, live);
+        } else if (expression instanceof Ast.ParenExpr) {
+            addUses(((Ast.ParenExpr) expression).expression, live);
+        }
+    }
+
+    private static void addUse(Ast.Variable variable, BitSet live) {
+        if (variable.kind == SymbolTable.Kind.VAR) {
+            live.set(variable.index);
+        }
+    }
+}
@@ -1,100 +1,156 @@
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Scoped symbol table of a class. The class scope holds fields and statics, a subroutine scope nested in it holds
+ * arguments and locals, and further scopes can be nested with enterScope/exitScope.
+ * <p>
+ * All visible names live in one map holding the innermost entry per name; an entry keeps the outer entry it shadows,
+ * which is put back when its scope is left. A lookup is therefore a single probe whatever the nesting depth.
+ */
 public class SymbolTable {
-    final Map<String, Map<String, String>> classSymbols;
-    final Map<String, Map<String, String>> functionSymbols;
-    final Map<Kind, Integer> indexMapping;
-
-    public SymbolTable() {
-        this.classSymbols = new HashMap<>();
-        this.functionSymbols = new HashMap<>();
-        this.indexMapping = new HashMap<Kind, Integer>() {
-            {
-                put(Kind.FIELD, 0);
-                put(Kind.STATIC, 0);
-                put(Kind.VAR, 0);
-                put(Kind.ARG, 0);
-            }
-        };
+    private final InternTable strings;
+    private final Map<String, Entry> symbols = new HashMap<>();
+    private final List<List<Entry>> scopes = new ArrayList<>(); // entries declared in each open scope, outermost first
+    private final int[] counts = new int[Kind.values().length];
+
+    /**
+     * @param strings: intern table of the compilation unit, types are stored as its canonical strings
+     */
+    public SymbolTable(InternTable strings) {
+        this.strings = strings;
     }
 
-    boolean contains(String symbol) {
-        return functionSymbols.containsKey(symbol) || classSymbols.containsKey(symbol);
+    /**
+     * Clears the table and opens the class scope
+     */
+    void startClass() {
+        symbols.clear();
+        scopes.clear();
+        scopes.add(new ArrayList<>());
+        counts[Kind.FIELD.ordinal()] = 0;
+        counts[Kind.STATIC.ordinal()] = 0;
+        counts[Kind.VAR.ordinal()] = 0;
+        counts[Kind.ARG.ordinal()] = 0;
     }
 
-    void add(String name, Kind kind, String type) {
-        if (kind == Kind.FIELD || kind == Kind.STATIC) {
-            classSymbols.put(name, new HashMap<String, String>() {{
-                put("kind", kind.name());
-                put("type", type);
-                put("index", indexMapping.get(kind).toString());
-            }});
-        } else {
-            functionSymbols.put(name, new HashMap<String, String>() {{
-                put("kind", kind.name());
-                put("type", type);
-                put("index", indexMapping.get(kind).toString());
-            }});
+    /**
+     * Closes the scopes of the previous subroutine and opens a new subroutine scope in the class scope
+     */
+    void startSubroutine() {
+        while (scopes.size() > 1) {
+            exitScope();
         }
-        indexMapping.put(kind, indexMapping.get(kind) + 1);
+        enterScope();
+        counts[Kind.VAR.ordinal()] = 0;
+        counts[Kind.ARG.ordinal()] = 0;
     }
 
-    int getIndex(String symbol) {
-        if (functionSymbols.containsKey(symbol)) {
-            return Integer.valueOf(functionSymbols.get(symbol).get("index"));
-        }
-        return Integer.valueOf(classSymbols.get(symbol).get("index"));
+    /**
+     * Opens a scope nested in the current one. Indexes keep counting, so its variables get slots of their own.
+     */
+    void enterScope() {
+        scopes.add(new ArrayList<>());
     }
 
-    String getType(String symbol) {
-        if (functionSymbols.containsKey(symbol)) {
-            return functionSymbols.get(symbol).get("type");
+    /**
+     * Closes the innermost scope, names it shadowed become visible again
+     */
+    void exitScope() {
+        List<Entry> scope = scopes.remove(scopes.size() - 1);
+        for (int i = scope.size() - 1; i >= 0; i--) {
+            Entry entry = scope.get(i);
+            if (entry.shadowed != null) {
+                symbols.put(entry.name, entry.shadowed);
+            } else {
+                symbols.remove(entry.name);
+            }
         }
-        return classSymbols.get(symbol).get("type");
     }
 
-    String getKind(String symbol) {
-        if (functionSymbols.containsKey(symbol)) {
-            return functionSymbols.get(symbol).get("kind");
-        }
-        return classSymbols.get(symbol).get("kind");
+    /**
+     * Declares a variable in the innermost scope with the next index of its kind
+     *
+     * @param name
+     * @param kind
+     * @param type
+     * @return the new entry
+     */
+    Entry define(String name, Kind kind, String type) {
+        return put(name, kind, type, counts[kind.ordinal()]++);
     }
 
-    String getVmKind(String symbol) {
-        Kind kind = Kind.valueOf(getKind(symbol));
-        switch (kind) {
-            case ARG:
-                return "argument";
-            case VAR:
-                return "local";
-            case STATIC:
-                return "static";
-            case FIELD:
-                return "this";
-            default:
-                throw new InvalidTokenException(kind.name());
-        }
+    /**
+     * Declares a constant in the innermost scope, it takes no slot
+     *
+     * @param name
+     * @param type
+     * @param value
+     * @return the new entry, its index is the value
+     */
+    Entry defineConstant(String name, String type, int value) {
+        return put(name, Kind.CONSTANT, type, value);
+    }
+
+    private Entry put(String name, Kind kind, String type, int index) {
+        Entry entry = new Entry(name, kind, strings.get(strings.intern(type)), index, symbols.get(name));
+        symbols.put(name, entry);
+        scopes.get(scopes.size() - 1).add(entry);
+        return entry;
     }
 
-    void resetClassSymbols() {
-        classSymbols.clear();
-        indexMapping.put(Kind.FIELD, 0);
-        indexMapping.put(Kind.STATIC, 0);
+    /**
+     * Returns the innermost visible entry of a name
+     *
+     * @param name
+     * @return null if the name is not declared
+     */
+    Entry lookup(String name) {
+        return symbols.get(name);
     }
 
-    void resetFunctionSymbols() {
-        functionSymbols.clear();
-        indexMapping.put(Kind.VAR, 0);
-        indexMapping.put(Kind.ARG, 0);
+    /**
+     * Returns the number of variables of a kind declared so far in the class or subroutine
+     *
+     * @param kind
+     * @return
+     */
+    int count(Kind kind) {
+        return counts[kind.ordinal()];
+    }
+
+    /**
+     * A declared variable
+     */
+    static final class Entry {
+        final String name;
+        final Kind kind;
+        final String type;
+        final int index; // the value of a constant, as in 'push constant index'
+        private final Entry shadowed; // entry of the same name in an outer scope
+
+        private Entry(String name, Kind kind, String type, int index, Entry shadowed) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.index = index;
+            this.shadowed = shadowed;
+        }
     }
 
     enum Kind {
-        FIELD, STATIC, VAR, ARG;
+        FIELD("this"), STATIC("static"), VAR("local"), ARG("argument"), CONSTANT("constant");
+
+        final String segment; // VM memory segment of variables of this kind
+
+        Kind(String segment) {
+            this.segment = segment;
+        }
 
         public static Kind getEnum(String val) {
-            return Arrays.asList(values()).stream().filter(kind -> val.toUpperCase().equals(kind.name())).findFirst().get();
+            return valueOf(val.toUpperCase());
         }
     }
-}
\ No newline at end of file
+}
@@ -4,10 +4,18 @@
 class Token {
     private final TokenType tokenType;
     private final String value;
+    private final int line;
+    private final int column;
 
     Token(TokenType tokenType, String value) {
+        this(tokenType, value, 0, 0);
+    }
+
+    Token(TokenType tokenType, String value, int line, int column) {
         this.tokenType = tokenType;
         this.value = value;
+        this.line = line;
+        this.column = column;
     }
 
     public TokenType getTokenType() {
@@ -18,9 +26,19 @@ class Token {
         return value;
     }
 
+    // 1-based line of the first character, 0 if unknown
+    public int getLine() {
+        return line;
+    }
+
+    // 1-based column of the first character, 0 if unknown
+    public int getColumn() {
+        return column;
+    }
+
     @Override
     public String toString() {
-        return String.format("Token{tokenType='%s', value='%s'}", tokenType, value);
+        return String.format("Token{tokenType='%s', value='%s', line=%d, column=%d}", tokenType, value, line, column);
     }
 
     enum TokenType {
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Tokens of one jack file, stored in parallel primitive arrays instead of one object per token. A token is referred
+ * to by its index: its type, position in the source, line, column and intern id (for keywords, symbols and
+ * identifiers, -1 for constants) are looked up by index.
+ * <p>
+ * A file is tokenized once into a stream, which can be written as token xml and read by the parser in any order.
+ */
+class TokenStream {
+    private static final Token.TokenType[] TOKEN_TYPES = Token.TokenType.values();
+
+    private final char[] source;
+    private final InternTable strings;
+    private byte[] types = new byte[1024];
+    private int[] starts = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] ids = new int[1024];
+    private int[] lines = new int[1024];
+    private int[] columns = new int[1024];
+    private int size = 0;
+    private int position = 0; // index of the next token
+
+    TokenStream(char[] source, InternTable strings) {
+        this.source = source;
+        this.strings = strings;
+    }
+
+    /**
+     * Appends a token
+     *
+     * @param tokenType
+     * @param start:    offset of the token value in the source
+     * @param length:   length of the token value
+     * @param id:       intern id, -1 for constants
+     * @param line
+     * @param column
+     */
+    void add(Token.TokenType tokenType, int start, int length, int id, int line, int column) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+        }
+        types[size] = (byte) tokenType.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        ids[size] = id;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    /**
+     * Writes all tokens to the token xml file, independent of the read position
+     *
+     * @param outputFile
+     * @param indentWidth: spaces per nesting level, 0 for none
+     */
+    public void writeXml(File outputFile, int indentWidth) {
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(outputFile))) {
+            XmlWriter xmlWriter = new XmlWriter(bufferedWriter, indentWidth);
+            xmlWriter.startElement("tokens");
+            for (int index = 0; index < size; index++) {
+                xmlWriter.writeTerminal(XmlWriter.getTagName(getType(index)), getValue(index));
+            }
+            xmlWriter.endElement("tokens");
+            bufferedWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns true if there are any more tokens to process else false
+     *
+     * @return
+     */
+    boolean hasMoreTokens() {
+        return position < size;
+    }
+
+    /**
+     * Returns index of the next token
+     *
+     * @return
+     */
+    int peek() {
+        if (position == size) {
+            throw new InvalidTokenException("No more token!");
+        }
+        return position;
+    }
+
+    /**
+     * Returns index of the next token and moves past it
+     *
+     * @return
+     */
+    int poll() {
+        int index = peek();
+        position++;
+        return index;
+    }
+
+    /**
+     * Moves back to the first token, so the tokens can be read again
+     */
+    void rewind() {
+        position = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Token.TokenType getType(int index) {
+        return TOKEN_TYPES[types[index]];
+    }
+
+    int getId(int index) {
+        return ids[index];
+    }
+
+    int getLine(int index) {
+        return lines[index];
+    }
+
+    int getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * Returns value of a token: the interned string for keywords, symbols and identifiers, a new string for constants
+     *
+     * @param index
+     * @return
+     */
+    String getValue(int index) {
+        return ids[index] >= 0 ? strings.get(ids[index]) : new String(source, starts[index], lengths[index]);
+    }
+
+    /**
+     * Returns the token at an index as a Token object
+     *
+     * @param index
+     * @return
+     */
+    Token getToken(int index) {
+        return new Token(getType(index), getValue(index), lines[index], columns[index]);
+    }
+
+    InternTable getStrings() {
+        return strings;
+    }
+}
@@ -1,188 +1,161 @@
 import java.io.*;
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 /**
- * Creates token out of the jack file
+ * Creates token out of the jack file. The whole file is read into a char[] and scanned once, each character is looked
+ * up in a character class table which decides the kind of token it starts and which characters may continue it.
+ * Tokens go into a TokenStream, keywords, symbols and identifiers are interned.
  */
 class Tokenizer {
-    private final static Set<String> KEYWORDS = new HashSet<>(Arrays.asList("class", "constructor", "function",
-            "method", "field", "static", "var", "int", "char", "boolean", "void", "true", "false", "null", "this",
-            "let", "do", "if", "else", "while", "return"));
-    private final static Set<String> SYMBOLS = new HashSet<>(Arrays.asList("{", "}", "(", ")", "[", "]", ".", ",", ";",
-            "+", "-", "*", "/", "&", "|", ",", "<", ">", "=", "~"));
+    // character classes
+    private final static byte OTHER = 0;
+    private final static byte SPACE = 1;
+    private final static byte NEWLINE = 2;
+    private final static byte LETTER = 3; // letters and '_'
+    private final static byte DIGIT = 4;
+    private final static byte SYMBOL = 5;
+    private final static byte QUOTE = 6;
+    private final static byte SLASH = 7; // division or start of a comment
+    private final static byte[] CHAR_CLASSES = new byte[128];
 
-    // white space characters
-    private final static String EMPTY_LINE = "^[\\s]*$";
-    private final static String SINGLE_LINE_COMMENT = "(//.*$)|(/\\*.*\\*/)";
-    private final static String MULTI_LINE_COMMENT_START = "/\\*.*$";
-    private final static String MULTI_LINE_COMMENT_END = "^.*\\*/";
-    private final static Pattern INT_CONSTANT = Pattern.compile("^[0-9]+");
-    private final static Pattern STR_CONSTANT = Pattern.compile("^\"[^\"]+\"");
-    private final static Pattern IDENTIFIER = Pattern.compile("^[A-Za-z_]+[0-9A-Za-z_]*");
-    private final BufferedReader bufferedReader;
-    private final Queue<Token> tokens = new LinkedList();
-    private boolean multiLineComment = false;
-
-    Tokenizer(File file) {
-        try {
-            this.bufferedReader = new BufferedReader(new FileReader(file));
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASSES[c] = LETTER;
+            CHAR_CLASSES[Character.toUpperCase(c)] = LETTER;
         }
-    }
-
-    /**
-     * Removes empty lines, single line comments
-     *
-     * @param content a line from a text
-     * @return
-     */
-    private static String trimContent(String content) {
-        String[] patterns = {EMPTY_LINE, SINGLE_LINE_COMMENT};
-        for (String pattern : patterns) {
-            Pattern p = Pattern.compile(pattern);
-            Matcher matcher = p.matcher(content);
-            content = matcher.replaceAll("");
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASSES[c] = DIGIT;
         }
-        return content.trim();
+        for (char c : "{}()[].,;+-*&|<>=~".toCharArray()) {
+            CHAR_CLASSES[c] = SYMBOL;
+        }
+        CHAR_CLASSES['_'] = LETTER;
+        CHAR_CLASSES['"'] = QUOTE;
+        CHAR_CLASSES['/'] = SLASH;
+        CHAR_CLASSES[' '] = SPACE;
+        CHAR_CLASSES['\t'] = SPACE;
+        CHAR_CLASSES['\r'] = SPACE;
+        CHAR_CLASSES['\f'] = SPACE;
+        CHAR_CLASSES['\n'] = NEWLINE;
     }
 
-    /**
-     * Writes output to the output file
-     *
-     * @param outputFile
-     */
-    public void write(File outputFile) {
-        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(outputFile))) {
-            bufferedWriter.write("<tokens>\n");
-            while (hasMoreTokens()) {
-                bufferedWriter.write(new TerminalNode(pollToken()).toString());
-            }
-            bufferedWriter.write("</tokens>\n");
-            bufferedWriter.flush();
+    private final char[] chars;
+    private final InternTable strings;
+    private int position = 0;
+    private int line = 1;
+    private int lineStart = 0; // position of the first character of the current line
+
+    Tokenizer(File file, InternTable strings) {
+        try {
+            this.chars = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).toCharArray();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        this.strings = strings;
     }
 
-    /**
-     * Returns true if there are any more tokens to process else false
-     *
-     * @return
-     */
-    boolean hasMoreTokens() {
-        if (tokens.isEmpty())
-            loadNextLine();
-        return !tokens.isEmpty();
+    private static byte charClass(char c) {
+        return c < CHAR_CLASSES.length ? CHAR_CLASSES[c] : OTHER;
     }
 
     /**
-     * Polls the next token from the input file
+     * Scans the whole file, skipping white space and comments
      *
      * @return
      */
-    public Token pollToken() {
-        if (hasMoreTokens())
-            return tokens.poll();
-        else
-            throw new InvalidTokenException("No more token!");
-    }
-
-    /**
-     * Peeks the next token from the input file
-     *
-     * @return
-     */
-    public Token peekToken() {
-        if (hasMoreTokens())
-            return tokens.peek();
-        else
-            throw new InvalidTokenException("No more token!");
-    }
-
-    /**
-     * Reads the next line from the input file and loads it to the tokens queue
-     *
-     * @return
-     */
-    private void loadNextLine() {
-        while (true) {
-            try {
-                String line = bufferedReader.readLine();
-                if (line == null) break;
-                line = trimContent(line);
-                Pattern multiLineStart = Pattern.compile(MULTI_LINE_COMMENT_START);
-                Pattern multiLineEnd = Pattern.compile(MULTI_LINE_COMMENT_END);
-                if (!line.isEmpty()) {
-                    Matcher multiLIneStartMatcher = multiLineStart.matcher(line);
-                    Matcher multiLIneEndMatcher = multiLineEnd.matcher(line);
-                    if (multiLIneStartMatcher.find()) {
-                        multiLineComment = true;
-                        line = multiLIneStartMatcher.replaceFirst("").trim(); //return anything before comment starts
-                    } else if (multiLIneEndMatcher.find()) {
-                        multiLineComment = false;
-                        line = multiLIneEndMatcher.replaceFirst("").trim();//return anything after comment ends
-                    } else if (multiLineComment) {
-                        continue;
+    TokenStream tokenize() {
+        TokenStream tokens = new TokenStream(chars, strings);
+        position = 0;
+        line = 1;
+        lineStart = 0;
+        while (position < chars.length) {
+            int start = position;
+            switch (charClass(chars[position])) {
+                case NEWLINE:
+                    position++;
+                    line++;
+                    lineStart = position;
+                    break;
+                case SPACE:
+                    position++;
+                    break;
+                case SLASH:
+                    if (position + 1 < chars.length && chars[position + 1] == '/') {
+                        while (position < chars.length && chars[position] != '\n') {
+                            position++;
+                        }
+                    } else if (position + 1 < chars.length && chars[position + 1] == '*') {
+                        skipBlockComment();
+                    } else {
+                        position++;
+                        addToken(tokens, Token.TokenType.SYMBOL, start, start, position);
                     }
-                    if (!line.isEmpty()) {
-                        enqueTokens(line);
-                        break;
+                    break;
+                case SYMBOL:
+                    position++;
+                    addToken(tokens, Token.TokenType.SYMBOL, start, start, position);
+                    break;
+                case DIGIT:
+                    while (position < chars.length && charClass(chars[position]) == DIGIT) {
+                        position++;
                     }
-                }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                    addToken(tokens, Token.TokenType.INT_CONST, start, start, position);
+                    break;
+                case LETTER:
+                    byte charClass;
+                    do {
+                        position++;
+                    } while (position < chars.length
+                            && ((charClass = charClass(chars[position])) == LETTER || charClass == DIGIT));
+                    addToken(tokens, Token.TokenType.IDENTIFIER, start, start, position);
+                    break;
+                case QUOTE:
+                    do {
+                        position++;
+                        if (position == chars.length || chars[position] == '\n') {
+                            throw new InvalidTokenException(String.format("Unterminated string constant at %d:%d",
+                                    line, start - lineStart + 1));
+                        }
+                    } while (chars[position] != '"');
+                    position++;
+                    addToken(tokens, Token.TokenType.STRING_CONST, start, start + 1, position - 1);
+                    break;
+                default:
+                    throw new InvalidTokenException(String.format("Invalid character '%c' at %d:%d", chars[position],
+                            line, start - lineStart + 1));
             }
         }
+        return tokens;
     }
 
-    /**
-     * Adds tokens from a line to the queue
-     *
-     * @param line
-     */
-    private void enqueTokens(String line) {
-        while (!line.isEmpty()) {
-            String token = "";
-            Token.TokenType tokenType = null;
-
-            for (String symbol : SYMBOLS) {
-                if (line.startsWith(symbol)) {
-                    token = symbol;
-                    tokenType = Token.TokenType.SYMBOL;
-                    break;
-                }
+    // skips '/* ... */', keeping track of the lines it spans
+    private void skipBlockComment() {
+        int startLine = line;
+        int startColumn = position - lineStart + 1;
+        position += 2;
+        while (position + 1 < chars.length && !(chars[position] == '*' && chars[position + 1] == '/')) {
+            if (chars[position] == '\n') {
+                line++;
+                lineStart = position + 1;
             }
-            Matcher intMatcher = INT_CONSTANT.matcher(line);
-            Matcher strMatcher = STR_CONSTANT.matcher(line);
-            Matcher identifierMatcher = IDENTIFIER.matcher(line);
-            if (intMatcher.find()) {
-                token = line.substring(intMatcher.start(), intMatcher.end());
-                tokenType = Token.TokenType.INT_CONST;
-            } else if (strMatcher.find()) {
-                token = line.substring(strMatcher.start(), strMatcher.end());
-                tokenType = Token.TokenType.STRING_CONST;
-            } else if (token.isEmpty()) {
-                if (!identifierMatcher.find()) {
-                    throw new InvalidTokenException("Invalid line: " + line);
-                }
-                token = line.substring(identifierMatcher.start(), identifierMatcher.end());
-                tokenType = Token.TokenType.IDENTIFIER;
-                for (String keyword : KEYWORDS) {
-                    if (token.equals(keyword)) {
-                        tokenType = Token.TokenType.KEYWORD;
-                        break;
-                    }
-                }
-            }
-            line = line.substring(token.length());
-            line = line.trim();
-            if (tokenType == Token.TokenType.STRING_CONST) {
-                token = token.substring(1, token.length() - 1); // remove double quote chars from start and end
+            position++;
+        }
+        if (position + 1 >= chars.length) {
+            throw new InvalidTokenException(String.format("Unterminated comment at %d:%d", startLine, startColumn));
+        }
+        position += 2;
+    }
+
+    // adds the token whose text starts at 'start' and whose value is chars[from, to)
+    private void addToken(TokenStream tokens, Token.TokenType tokenType, int start, int from, int to) {
+        int id = -1;
+        if (tokenType != Token.TokenType.INT_CONST && tokenType != Token.TokenType.STRING_CONST) {
+            id = strings.intern(chars, from, to - from);
+            if (tokenType == Token.TokenType.IDENTIFIER && InternTable.isKeyword(id)) {
+                tokenType = Token.TokenType.KEYWORD;
             }
-            tokens.add(new Token(tokenType, token));
         }
+        tokens.add(tokenType, from, to - from, id, line, start - lineStart + 1);
     }
 }
@@ -1,308 +1,940 @@
 import java.io.*;
-import java.util.List;
-import java.util.Stack;
-import java.util.stream.Collectors;
+import java.util.*;
 
 /**
- * Writes VM output
+ * Writes VM output, generated by visiting the syntax tree of a class. In direct emit mode CompilationEngine calls the
+ * write*Start/End methods itself while parsing and only hands over the trees of single statements and expressions.
+ * <p>
+ * With CompileOptions.poolStrings each distinct string literal of a class gets a static slot after the declared
+ * statics. The string is built on its first evaluation and the slot is reused after that, so the literal is one shared
+ * object: code that changes or disposes a literal needs the default mode. Pooled literals also count against the 240
+ * static slots of a program.
+ * <p>
+ * Given an Inliner, calls of small subroutines are replaced with their bodies, see writeInlined.
+ * <p>
+ * With CompileOptions.branchLayout an if statement jumps over its 'then' statements on the negated condition, and a
+ * loop is rotated: it jumps to its condition once, which then sits below the body and jumps back while it holds. That
+ * is one if-goto per decision and per iteration, instead of two jumps for an if and three for a loop iteration. The
+ * tests keep their meaning for conditions other than 0 and -1: an if runs its 'then' statements if the condition is
+ * not 0, a loop, which has always exited on not(condition), runs while the condition is -1.
+ * <p>
+ * With CompileOptions.shareLocals local variables are written to the slots LocalSlots gives them.
+ * <p>
+ * Array accesses go through pointer 1. Within a statement the writer remembers which array and index it points at,
+ * so repeated accesses of the same element, and constant indices of the same array, which are read as 'that c',
+ * don't set it again. Calls save and restore pointer 1 but may change the variables of the index, so they end this,
+ * like labels do. An array assignment sets pointer 1 before or after its value if the value leaves it alone, and only
+ * shuffles the value through temp 0 if it doesn't.
+ * <p>
+ * Subexpressions a statement evaluates more than once are kept in temp slots, see CommonSubexpressions. Temp 0 is
+ * only used after the expressions of a statement, and temp 1 and 2 within a multiplication, so values are
+ * kept in temp 0, and in the temp slots of inlined calls if nothing is inlined.
+ * <p>
+ * With CompileOptions.freeLists each class with fields keeps a list of disposed objects, linked through their first
+ * field, in the static slot after its declared statics. 'do Memory.deAlloc(this);' puts the object on the list, and
+ * constructors take the first object of the list, calling Memory.alloc only if it is empty. All objects of a class have
+ * the same size, so that is a few commands instead of a search of the heap, and the heap doesn't fragment.
  */
-public class VMWriter {
+public class VMWriter implements AstVisitor {
+    // most VM commands a multiplication by a constant is replaced with, Math.multiply runs hundreds of them
+    private static final int MULTIPLY_COST_LIMIT = 40;
+    private static final List<Integer> COMMON_TEMPS = Arrays.asList(0, 3, 4, 5, 6, 7);
+
     private final BufferedWriter bufferedWriter;
-    private final String className;
+    private final CompileOptions options;
+    private final Map<String, Integer> stringPool = new HashMap<>(); // static slot of each literal of the class
+    private final Set<Integer> divideShifts = new TreeSet<>(); // k of each division by 2^k in the class
+    private final Set<String> reachable; // VM names of the subroutines to write, null for all
+    private final Inliner inliner; // null to call every subroutine
+    private Ast.SubroutineDec inlined; // subroutine whose body is being inlined
+    private boolean inlinedOnThat; // the object of the inlined method is in pointer 1, not 0
+    private LocalSlots localSlots; // slots of the local variables of the subroutine, null for their own indices
+    private Ast.Variable thatArray; // array pointer 1 points into, null if not known
+    private Ast.Expression thatIndex; // index pointer 1 points at, null for the start of the array
+    private CommonSubexpressions common; // of the statement being written, null if none
+    private final BitSet commonValues = new BitSet(); // temp slots holding the value of their subexpression
+    private Ast.Expression keeping; // common subexpression being evaluated, to be kept
+    private String className;
+    private int nFields;
+    private int nStatics;
+    private String subroutineKind;
     private int ifCount = 0;
     private int whileCount = 0;
+    private int stringCount = 0;
+    private int allocCount = 0; // of the class, the translator scopes labels by file
 
-    public VMWriter(File outputFile) {
+    /**
+     * @param outputFile
+     * @param options
+     * @param reachable:  VM names of the subroutines to write, the others are left out; null to write all
+     * @param inliner:    subroutines to inline, null for none
+     */
+    public VMWriter(File outputFile, CompileOptions options, Set<String> reachable, Inliner inliner) {
+        this.options = options;
+        this.reachable = reachable;
+        this.inliner = inliner;
         try {
             bufferedWriter = new BufferedWriter(new FileWriter(outputFile));
-            className = outputFile.getName().split("\\.")[0];
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * VM code for return statement
+     * VM code for all subroutines of a class
      */
-    void writeReturnStatement(Node returnNode) {
-        // void function
-        if (returnNode.getChildren().get(1).getValue().equals(";")) {
-            writePush("constant", 0);
-        } else {
-            Node expression = returnNode.getChildren().get(1);
-            writeExpression(expression);
+    @Override
+    public void visit(Ast.ClassDec classDec) {
+        setClass(classDec.name, classDec.nFields, classDec.nStatics);
+        for (Ast.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+            if (reachable == null || reachable.contains(className + "." + subroutineDec.name)) {
+                subroutineDec.accept(this);
+            }
         }
-        writeToFile("return");
+        writeClassEnd();
     }
 
     /**
-     * VM code for statements
+     * Sets the class whose subroutines are written next
+     *
+     * @param className
+     * @param nFields:  number of fields, the size of an object
+     * @param nStatics: number of declared static variables
      */
-    void writeStatements(Node statements) {
-        for (Node statement : statements.getChildren()) {
-            switch (statement.getName()) {
-                case "doStatement":
-                    writeDoStatement(statement);
-                    break;
-                case "returnStatement":
-                    writeReturnStatement(statement);
-                    break;
-                case "letStatement":
-                    writeLetStatement(statement);
-                    break;
-                case "ifStatement":
-                    writeIfStatement(statement);
-                    break;
-                case "whileStatement":
-                    writeWhileStatement(statement);
-                    break;
-                default:
-                    throw new InvalidTokenException(statement.getValue());
-            }
+    void setClass(String className, int nFields, int nStatics) {
+        this.className = className;
+        this.nFields = nFields;
+        this.nStatics = nStatics;
+        allocCount = 0;
+        stringPool.clear();
+        divideShifts.clear();
+    }
+
+    /**
+     * Writes the functions the subroutines of the class share, after the last of them
+     */
+    void writeClassEnd() {
+        for (int k : divideShifts) {
+            writeDivideFunction(k);
         }
     }
 
+    // class variables need no code
+    @Override
+    public void visit(Ast.ClassVarDec classVarDec) {
+    }
+
     /**
-     * VM code for return subroutine call i.e. subroutineName '(' expressionList ')'
+     * VM code for a constructor, function or method
      */
-    void writeSubroutineCall(String subroutineName, Node expressionList) {
-        int nParams = (expressionList.getChildren().size() + 1) / 2 + 1;
-        writePush("pointer", 0);
-        writeExpressions(expressionList);
-        writeCall(className + "." + subroutineName, nParams);
+    @Override
+    public void visit(Ast.SubroutineDec subroutineDec) {
+        localSlots = options.shareLocals ? new LocalSlots(subroutineDec) : null;
+        writeSubroutineStart(subroutineDec.kind, subroutineDec.name,
+                localSlots != null ? localSlots.getCount() : subroutineDec.nLocals);
+        writeStatements(subroutineDec.statements);
     }
 
     /**
-     * VM code for return subroutine call i.e. ( className | varName) '.' subroutineName '(' expressionList ')'
+     * Function declaration, and setting up 'this' in constructors and methods
+     *
+     * @param kind:    'constructor', 'function' or 'method'
+     * @param name
+     * @param nLocals
      */
-    void writeSubroutineCall(String className, String subroutineName, Node expressionList) {
-        int nParams = (expressionList.getChildren().size() + 1) / 2;
-        if (CompilationEngine.SYMBOL_TABLE.contains(className)) { // varName case
-            writePush(CompilationEngine.SYMBOL_TABLE.getVmKind(className), CompilationEngine.SYMBOL_TABLE.getIndex(className));
-            className = CompilationEngine.SYMBOL_TABLE.getType(className);
-            nParams++;
+    void writeSubroutineStart(String kind, String name, int nLocals) {
+        writeFunction(className + "." + name, nLocals);
+        subroutineKind = kind;
+        // constructor allocates the object, and always returns 'this'
+        if (kind.equals("constructor") && hasFreeList()) {
+            int allocCount = this.allocCount++;
+            writePush("static", nStatics);
+            writeIfGoto("ALLOC_REUSE" + allocCount);
+            writePush("constant", nFields);
+            writeCall("Memory.alloc", 1);
+            writePop("pointer", 0);
+            writeGoto("ALLOC_END" + allocCount);
+            writeLabel("ALLOC_REUSE" + allocCount); // take the first object of the free list
+            writePush("static", nStatics);
+            writePop("pointer", 0);
+            writePush("this", 0);
+            writePop("static", nStatics);
+            writeLabel("ALLOC_END" + allocCount);
+        } else if (kind.equals("constructor")) {
+            writePush("constant", nFields);
+            writeCall("Memory.alloc", 1);
+            writePop("pointer", 0);
+        } else if (kind.equals("method")) {
+            writePush("argument", 0);
+            writePop("pointer", 0);
         }
-        writeExpressions(expressionList);
-        writeCall(className + "." + subroutineName, nParams);
+    }
+
+    // local variables need no code
+    @Override
+    public void visit(Ast.VarDec varDec) {
     }
 
     /**
-     * 'do' subroutineCall ';'
+     * VM code for statements
+     */
+    void writeStatements(List<Ast.Statement> statements) {
+        for (Ast.Statement statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    /**
+     * 'return' expression? ';'
      */
-    void writeDoStatement(Node doStatement) {
-        if (doStatement.getChildren().get(2).getValue().equals(".")) { // (varName|className).subroutine(expressions)
-            String className = doStatement.getChildren().get(1).getValue();
-            String functionName = doStatement.getChildren().get(3).getValue();
-            Node expressionList = doStatement.getChildren().get(5);
-            writeSubroutineCall(className, functionName, expressionList);
+    @Override
+    public void visit(Ast.ReturnStatement returnStatement) {
+        // void function
+        if (returnStatement.value == null) {
+            writePush("constant", 0);
         } else {
-            String functionName = doStatement.getChildren().get(1).getValue();
-            Node expressionList = doStatement.getChildren().get(3);
-            writeSubroutineCall(functionName, expressionList);
+            writeExpression(returnStatement.value);
         }
+        writeToFile("return");
+    }
+
+    /**
+     * 'do' subroutineCall ';'
+     */
+    @Override
+    public void visit(Ast.DoStatement doStatement) {
+        forgetThat();
+        Ast.CallExpr call = ConstantFolder.foldCall(doStatement.call);
+        if (hasFreeList() && isDisposal(call)) { // put the object on the free list
+            writePush("static", nStatics);
+            writePop("this", 0);
+            writePush("pointer", 0);
+            writePop("static", nStatics);
+            return;
+        }
+        findCommon(call);
+        Ast.SubroutineDec subroutineDec = inliner == null ? null : inliner.get(call, className);
+        if (subroutineDec != null && Inliner.getReturnValue(subroutineDec) == null) { // setter, leaves no value
+            writeInlined(call, subroutineDec);
+            return;
+        }
+        call.accept(this);
         writePop("temp", 0);
     }
 
     /**
      * 'if' '(' expression ')' '{' statements '}' ( 'else' '{' statements '}' )?
      */
-    void writeIfStatement(Node ifStatement) {
-        Node expression = ifStatement.getChild("expression");
-        boolean hasElse = ifStatement.getChildren().size() > 7;
-        writeExpression(expression);
+    @Override
+    public void visit(Ast.IfStatement ifStatement) {
+        int ifGotoCount = writeIfStart(ifStatement.condition);
+        writeStatements(ifStatement.thenStatements);
+        if (ifStatement.elseStatements != null) {
+            writeElse(ifGotoCount);
+            writeStatements(ifStatement.elseStatements);
+        }
+        writeIfEnd(ifGotoCount, ifStatement.elseStatements != null);
+    }
+
+    /**
+     * Jumps on the condition, the 'then' statements follow
+     *
+     * @param condition
+     * @return number of the if statement, for its labels
+     */
+    int writeIfStart(Ast.Expression condition) {
         int ifGotoCount = this.ifCount++;
-        writeIfGoto("IF_TRUE" + ifGotoCount);
-        writeGoto("IF_FALSE" + ifGotoCount);
-        writeLabel("IF_TRUE" + ifGotoCount);
-        writeStatements(ifStatement.getChildren().get(5));
-        if (hasElse) {
-            writeGoto("IF_END" + ifGotoCount);
-            writeLabel("IF_FALSE" + ifGotoCount);
-            writeStatements(ifStatement.getChildren().get(9));
-            writeLabel("IF_END" + ifGotoCount);
+        if (options.branchLayout) {
+            writeBranch(condition, false, false, "IF_FALSE" + ifGotoCount);
         } else {
-            writeLabel("IF_FALSE" + ifGotoCount);
+            writeExpression(condition);
+            writeIfGoto("IF_TRUE" + ifGotoCount);
+            writeGoto("IF_FALSE" + ifGotoCount);
+            writeLabel("IF_TRUE" + ifGotoCount);
         }
+        return ifGotoCount;
+    }
+
+    // end of the 'then' statements, the 'else' statements follow
+    void writeElse(int ifGotoCount) {
+        writeGoto("IF_END" + ifGotoCount);
+        writeLabel("IF_FALSE" + ifGotoCount);
+    }
+
+    void writeIfEnd(int ifGotoCount, boolean hasElse) {
+        writeLabel((hasElse ? "IF_END" : "IF_FALSE") + ifGotoCount);
     }
 
     /**
      * while' '(' expression ')' '{' statements '}'
      */
-    void writeWhileStatement(Node whileStatement) {
+    @Override
+    public void visit(Ast.WhileStatement whileStatement) {
+        int whileCount = writeWhileStart(whileStatement.condition);
+        writeStatements(whileStatement.statements);
+        writeWhileEnd(whileCount, whileStatement.condition);
+    }
+
+    /**
+     * Start of a loop, the loop body follows
+     *
+     * @param condition
+     * @return number of the while statement, for its labels
+     */
+    int writeWhileStart(Ast.Expression condition) {
         int whileCount = this.whileCount++;
-        writeLabel("WHILE_EXP" + whileCount);
-        Node expression = whileStatement.getChildren().get(2);
-        writeExpression(expression);
-        writeArithmetic("not");
-        writeIfGoto("WHILE_END" + whileCount);
-        Node statements = whileStatement.getChildren().get(5);
-        writeStatements(statements);
-        writeGoto("WHILE_EXP" + whileCount);
-        writeLabel("WHILE_END" + whileCount);
+        if (options.branchLayout) {
+            Integer value = ConstantFolder.getConstant(ConstantFolder.fold(condition));
+            if (value == null || value != -1) { // an endless loop needs no first test
+                writeGoto("WHILE_EXP" + whileCount);
+            }
+            writeLabel("WHILE_TOP" + whileCount);
+        } else {
+            writeLabel("WHILE_EXP" + whileCount);
+            writeExpression(condition);
+            writeArithmetic("not");
+            writeIfGoto("WHILE_END" + whileCount);
+        }
+        return whileCount;
+    }
+
+    // end of the loop body
+    void writeWhileEnd(int whileCount, Ast.Expression condition) {
+        if (options.branchLayout) {
+            writeLabel("WHILE_EXP" + whileCount);
+            writeBranch(condition, true, true, "WHILE_TOP" + whileCount);
+        } else {
+            writeGoto("WHILE_EXP" + whileCount);
+            writeLabel("WHILE_END" + whileCount);
+        }
+    }
+
+    /**
+     * Jumps to a label depending on a condition. The condition holds if it is not 0, or with minusOne if it is -1; for
+     * the 0 and -1 that comparisons and boolean constants give, both are the same.
+     * <p>
+     * Leading '~' are dropped: ~x is not 0 unless x is -1, and is -1 if x is 0, so the test flips. A constant condition
+     * becomes a goto or nothing.
+     *
+     * @param condition
+     * @param minusOne:  the condition holds if it is -1, rather than not 0
+     * @param when:      jump if the condition holds, else if it doesn't
+     * @param label
+     */
+    private void writeBranch(Ast.Expression condition, boolean minusOne, boolean when, String label) {
+        forgetThat();
+        Ast.Expression expression = ConstantFolder.fold(condition);
+        while (expression instanceof Ast.UnaryExpr && ((Ast.UnaryExpr) expression).op == '~') {
+            expression = ((Ast.UnaryExpr) expression).operand;
+            minusOne = !minusOne;
+            when = !when;
+        }
+        findCommon(expression);
+        Integer value = ConstantFolder.getConstant(expression);
+        if (value != null) {
+            if ((minusOne ? value == -1 : value != 0) == when) {
+                writeGoto(label);
+            }
+            return;
+        }
+        boolean bool = isBoolean(expression);
+        expression.accept(this);
+        if (bool || minusOne != when) {
+            // if-goto on x or on not(x): x is not 0, x is not -1
+            if (!when) {
+                writeArithmetic("not");
+            }
+        } else {
+            // x is 0, x is -1
+            if (minusOne) {
+                writeArithmetic("not");
+            }
+            writePush("constant", 0);
+            writeArithmetic("eq");
+        }
+        writeIfGoto(label);
+    }
+
+    // true if the value of an expression can only be 0 or -1
+    private static boolean isBoolean(Ast.Expression expression) {
+        if (expression instanceof Ast.BinaryExpr) {
+            Ast.BinaryExpr binaryExpr = (Ast.BinaryExpr) expression;
+            switch (binaryExpr.op) {
+                case '<':
+                case '>':
+                case '=':
+                    return true;
+                case '&':
+                case '|':
+                    return isBoolean(binaryExpr.left) && isBoolean(binaryExpr.right);
+                default:
+                    return false;
+            }
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return ((Ast.UnaryExpr) expression).op == '~' && isBoolean(((Ast.UnaryExpr) expression).operand);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return isBoolean(((Ast.ParenExpr) expression).expression);
+        }
+        Integer value = ConstantFolder.getConstant(expression);
+        return value != null && (value == 0 || value == -1);
     }
 
     // 'let' varName ('[' expression ']')? '=' expression ';'
-    void writeLetStatement(Node letStatement) {
-        String varName = letStatement.getChildren().get(1).getValue();
-        if (letStatement.getChildren().get(2).getValue().equals("[")) {
-            Node expression1 = letStatement.getChildren().get(3);
-            Node expression2 = letStatement.getChildren().get(6);
-            writeExpression(expression1);
-            writePush(CompilationEngine.SYMBOL_TABLE.getVmKind(varName), CompilationEngine.SYMBOL_TABLE.getIndex(varName));
-            writeArithmetic("add");
-            writeExpression(expression2);
-            writePop("temp", 0);
-            writePop("pointer", 1);
-            writePush("temp", 0);
-            writePop("that", 0);
+    @Override
+    public void visit(Ast.LetStatement letStatement) {
+        Ast.Variable variable = letStatement.variable;
+        if (letStatement.index != null) {
+            forgetThat();
+            Ast.Expression index = ConstantFolder.fold(letStatement.index);
+            Ast.Expression value = ConstantFolder.fold(letStatement.value);
+            if (keepsThat(value, variable, index, ConstantFolder.isPure(value))) {
+                findCommon(index, value);
+                int offset = writeThat(variable, index);
+                value.accept(this);
+                writePop("that", offset);
+            } else if (ConstantFolder.isPure(index) && ConstantFolder.isPure(value)) {
+                // without side effects the element can be found after the value
+                findCommon(value, index);
+                value.accept(this);
+                writePop("that", writeThat(variable, index));
+            } else {
+                findCommon(index, value);
+                index.accept(this);
+                writePushVariable(variable);
+                writeArithmetic("add");
+                value.accept(this);
+                writePop("temp", 0);
+                writePop("pointer", 1);
+                writePush("temp", 0);
+                writePop("that", 0);
+                forgetThat();
+            }
         } else {
-            Node expression = letStatement.getChild("expression");
-            writeExpression(expression);
-            writePop(CompilationEngine.SYMBOL_TABLE.getVmKind(varName), CompilationEngine.SYMBOL_TABLE.getIndex(varName));
+            writeExpression(letStatement.value);
+            writePopVariable(variable);
+        }
+    }
+
+    /**
+     * VM code for an expression of a statement, after constant folding
+     */
+    void writeExpression(Ast.Expression expression) {
+        forgetThat();
+        Ast.Expression folded = ConstantFolder.fold(expression);
+        findCommon(folded);
+        folded.accept(this);
+    }
+
+    // finds the common subexpressions of the expressions of a statement, given in the order they are evaluated
+    private void findCommon(Ast.Expression... expressions) {
+        if (inlined != null) {
+            return; // part of the statement of the inlined call
+        }
+        common = new CommonSubexpressions(inliner == null ? COMMON_TEMPS : COMMON_TEMPS.subList(0, 1), expressions);
+        commonValues.clear();
+    }
+
+    /**
+     * Writes a common subexpression: pushes its kept value, or evaluates it and keeps the value
+     *
+     * @param expression
+     * @return false, having written nothing, if the expression is not kept
+     */
+    private boolean writeCommon(Ast.Expression expression) {
+        Integer slot = common == null ? null : common.getSlot(expression);
+        if (slot == null || expression == keeping) {
+            return false;
+        }
+        if (!commonValues.get(slot)) {
+            Ast.Expression outer = keeping;
+            keeping = expression;
+            expression.accept(this);
+            keeping = outer;
+            writePop("temp", slot);
+            commonValues.set(slot);
+        }
+        writePush("temp", slot);
+        return true;
+    }
+
+    // the callee may overwrite the temp slots and change what kept values read
+    private void forgetCommon() {
+        commonValues.clear();
+    }
+
+    /**
+     * subroutineName '(' expressionList ')' | ( className | varName) '.' subroutineName '(' expressionList ')'
+     */
+    @Override
+    public void visit(Ast.CallExpr call) {
+        Ast.SubroutineDec subroutineDec = inliner == null ? null : inliner.get(call, className);
+        if (subroutineDec != null) {
+            writeInlined(call, subroutineDec);
+            if (Inliner.getReturnValue(subroutineDec) == null) { // a void subroutine returns 0
+                writePush("constant", 0);
+            }
+            return;
+        }
+        int nParams = call.arguments.size();
+        if (call.isBare()) { // method of this object
+            writePush("pointer", 0);
+            nParams++;
+        } else if (call.receiver != null) { // method of the object in varName
+            writePushVariable(call.receiver);
+            nParams++;
+        }
+        for (Ast.Expression argument : call.arguments) {
+            argument.accept(this);
         }
+        writeCall(call.getFunction(className), nParams);
     }
 
     /**
-     * (expression (',' expression)* )?
+     * Writes the body of a subroutine in place of a call. The receiver and the arguments are evaluated as for the
+     * call, then the arguments are popped to temp slots and the receiver to pointer 1; a bare call works on 'this'
+     * directly. The body then reads arguments from the temp slots and fields through 'that'.
+     *
+     * @param call
+     * @param subroutineDec: getter or setter found by the Inliner
      */
-    void writeExpressions(Node expressions) {
-        expressions.getChildren().stream().forEach(this::writeExpression);
+    private void writeInlined(Ast.CallExpr call, Ast.SubroutineDec subroutineDec) {
+        if (call.receiver != null) {
+            writePushVariable(call.receiver);
+        }
+        for (Ast.Expression argument : call.arguments) {
+            argument.accept(this);
+        }
+        for (int i = call.arguments.size() - 1; i >= 0; i--) {
+            writePop("temp", Inliner.FIRST_TEMP + i);
+        }
+        if (call.receiver != null) {
+            writePop("pointer", 1);
+        }
+        inlined = subroutineDec;
+        inlinedOnThat = call.receiver != null;
+        try {
+            Ast.Expression returnValue = Inliner.getReturnValue(subroutineDec);
+            if (returnValue != null) {
+                writeExpression(returnValue);
+            } else {
+                Ast.LetStatement assignment = Inliner.getAssignment(subroutineDec);
+                writeExpression(assignment.value);
+                writePopVariable(assignment.variable);
+            }
+        } finally {
+            inlined = null;
+            forgetThat(); // the receiver is in pointer 1, a setter changes variables
+            forgetCommon();
+        }
+    }
+
+    private void writePushVariable(Ast.Variable variable) {
+        writePush(getSegment(variable), getIndex(variable));
+    }
+
+    private void writePopVariable(Ast.Variable variable) {
+        writePop(getSegment(variable), getIndex(variable));
+    }
+
+    // VM segment of a variable, arguments and fields of an inlined body are where writeInlined put them
+    private String getSegment(Ast.Variable variable) {
+        if (inlined != null && variable.kind == SymbolTable.Kind.ARG) {
+            return "temp";
+        } else if (inlined != null && variable.kind == SymbolTable.Kind.FIELD && inlinedOnThat) {
+            return "that";
+        }
+        return variable.getSegment();
+    }
+
+    private int getIndex(Ast.Variable variable) {
+        if (inlined != null && variable.kind == SymbolTable.Kind.ARG) {
+            // argument 0 of a method is 'this'
+            return Inliner.FIRST_TEMP + variable.index - (inlined.kind.equals("method") ? 1 : 0);
+        } else if (localSlots != null && variable.kind == SymbolTable.Kind.VAR) {
+            return localSlots.getSlot(variable.index);
+        }
+        return variable.index;
+    }
+
+    // operands left to right, then the operator
+    @Override
+    public void visit(Ast.BinaryExpr binaryExpr) {
+        if (writeCommon(binaryExpr)) {
+            return;
+        } else if (binaryExpr.op == '*' && (writeMultiply(binaryExpr.left, binaryExpr.right)
+                || writeMultiply(binaryExpr.right, binaryExpr.left))) {
+            return;
+        } else if (binaryExpr.op == '/' && writeDivide(binaryExpr.left, binaryExpr.right)) {
+            return;
+        }
+        binaryExpr.left.accept(this);
+        binaryExpr.right.accept(this);
+        writeOp(binaryExpr.op);
     }
 
     /**
-     * term (op term)*
+     * Writes operand * factor for a constant factor as doublings and adds (shift and add), the operand is evaluated
+     * once and kept in temp 1 unless it is a variable. The doubled value is kept in temp 2, as the VM can't duplicate
+     * the top of the stack.
+     *
+     * @param operand
+     * @param factor
+     * @return false, having written nothing, if factor is not a constant or the sequence would cost more than
+     * MULTIPLY_COST_LIMIT commands
      */
-    void writeExpression(Node expression) {
-        Stack<Node> stack = new Stack<>();
-        for (Node node : expression.getChildren()) {
-            if (node.getName().equals("symbol")) {
-                stack.push(node);
+    private boolean writeMultiply(Ast.Expression operand, Ast.Expression factor) {
+        if (!(factor instanceof Ast.IntegerExpr)) {
+            return false;
+        }
+        int value = ((Ast.IntegerExpr) factor).value;
+        boolean negate = value < 0; // x * -c is -(x * c)
+        int c = Math.abs(value);
+        if (c == 0 || c > Short.MAX_VALUE) {
+            return false;
+        }
+        boolean variable = operand instanceof Ast.VarExpr;
+        int top = 31 - Integer.numberOfLeadingZeros(c);
+        int cost = (variable ? 1 : 2) + (top > 0 ? 4 * top - 1 : 0) + 2 * (Integer.bitCount(c) - 1) + (negate ? 1 : 0);
+        if (cost > MULTIPLY_COST_LIMIT) {
+            return false;
+        }
+
+        String segment = "temp";
+        int index = 1;
+        if (variable) {
+            segment = getSegment(((Ast.VarExpr) operand).variable);
+            index = getIndex(((Ast.VarExpr) operand).variable);
+        } else {
+            operand.accept(this);
+            writePop("temp", 1);
+        }
+        writePush(segment, index);
+        for (int bit = top - 1; bit >= 0; bit--) {
+            if (bit == top - 1) { // the operand itself is doubled first
+                writePush(segment, index);
             } else {
-                writeTerm(node);
+                writePop("temp", 2);
+                writePush("temp", 2);
+                writePush("temp", 2);
+            }
+            writeArithmetic("add");
+            if ((c & (1 << bit)) != 0) {
+                writePush(segment, index);
+                writeArithmetic("add");
             }
         }
-        while (!stack.empty()) {
-            writeOp(stack.pop());
+        if (negate) {
+            writeArithmetic("neg");
+        }
+        return true;
+    }
+
+    /**
+     * Writes dividend / 2^k for a constant power of two divisor as a call of the class function that divides by 2^k,
+     * see writeDivideFunction. The function is written once per class, so each division costs its dividend and a call.
+     *
+     * @param dividend
+     * @param divisor
+     * @return false, having written nothing, if divisor is not a constant power of two
+     */
+    private boolean writeDivide(Ast.Expression dividend, Ast.Expression divisor) {
+        if (!(divisor instanceof Ast.IntegerExpr)) {
+            return false;
+        }
+        int d = ((Ast.IntegerExpr) divisor).value;
+        if (d < 2 || d > Short.MAX_VALUE || Integer.bitCount(d) != 1) {
+            return false;
         }
+        int k = Integer.numberOfTrailingZeros(d);
+        divideShifts.add(k);
+        dividend.accept(this);
+        writeCall(getDivideFunction(k), 1);
+        return true;
+    }
+
+    /**
+     * Writes the function that divides argument 0 by 2^k. A non negative dividend is divided by collecting its bits
+     * from k up, 7 commands for bit 14 and 8 with the add for each bit below it, and no calls; a negative one still
+     * goes to Math.divide, which rounds towards zero.
+     * Its name has a '$', which Jack identifiers can't, so it doesn't clash with the subroutines of the class.
+     *
+     * @param k
+     */
+    private void writeDivideFunction(int k) {
+        writeFunction(getDivideFunction(k), 0);
+        writePush("argument", 0);
+        writePush("constant", 0);
+        writeArithmetic("lt");
+        writeIfGoto("DIVIDE_NEG" + k); // labels are scoped by file, the function is the only one dividing by 2^k
+        // bit i of the dividend, as -1 or 0 from gt, masked to bit i - k of the quotient
+        for (int bit = 14; bit >= k; bit--) {
+            writePush("argument", 0);
+            writePush("constant", 1 << bit);
+            writeArithmetic("and");
+            writePush("constant", 0);
+            writeArithmetic("gt");
+            writePush("constant", 1 << (bit - k));
+            writeArithmetic("and");
+            if (bit < 14) {
+                writeArithmetic("add");
+            }
+        }
+        writeToFile("return");
+        writeLabel("DIVIDE_NEG" + k);
+        writePush("argument", 0);
+        writePush("constant", 1 << k);
+        writeCall("Math.divide", 2);
+        writeToFile("return");
+    }
+
+    private String getDivideFunction(int k) {
+        return className + ".divide$" + k;
     }
 
     // '~" or '-' term
-    void writeUnaryOp(Node op) {
-        switch (op.getValue()) {
-            case "-":
+    @Override
+    public void visit(Ast.UnaryExpr unaryExpr) {
+        if (writeCommon(unaryExpr)) {
+            return;
+        }
+        unaryExpr.operand.accept(this);
+        switch (unaryExpr.op) {
+            case '-':
                 writeArithmetic("neg");
                 break;
-            case "~":
+            case '~':
                 writeArithmetic("not");
                 break;
         }
     }
 
     // operation symbols
-    void writeOp(Node op) {
-        switch (op.getValue()) {
-            case "+":
+    void writeOp(char op) {
+        switch (op) {
+            case '+':
                 writeArithmetic("add");
                 break;
-            case "-":
+            case '-':
                 writeArithmetic("sub");
                 break;
-            case "*":
+            case '*':
                 writeCall("Math.multiply", 2);
                 break;
-            case "/":
+            case '/':
                 writeCall("Math.divide", 2);
                 break;
-            case "&":
+            case '&':
                 writeArithmetic("and");
                 break;
-            case "|":
+            case '|':
                 writeArithmetic("or");
                 break;
-            case ">":
+            case '>':
                 writeArithmetic("gt");
                 break;
-            case "<":
+            case '<':
                 writeArithmetic("lt");
                 break;
-            case "=":
+            case '=':
                 writeArithmetic("eq");
                 break;
         }
     }
 
+    @Override
+    public void visit(Ast.IntegerExpr integerExpr) {
+        writeConstant(integerExpr.value);
+    }
 
-    /**
-     * integerConstant | stringConstant | keywordConstant | varName | varName '[' expression ']' | subroutineCall |
-     * '(' expression ')' | unaryOp term
-     */
-    void writeTerm(Node term) {
-        switch (term.getChildren().get(0).getName()) {
+    // push constant only takes 0..32767, folded negative values are negated or, for -32768, inverted
+    private void writeConstant(int value) {
+        if (value >= 0) {
+            writePush("constant", value);
+        } else if (value == Short.MIN_VALUE) {
+            writePush("constant", Short.MAX_VALUE);
+            writeArithmetic("not");
+        } else {
+            writePush("constant", -value);
+            writeArithmetic("neg");
+        }
+    }
 
-            case "integerConstant":
-                writePush("constant", Integer.valueOf(term.getChildren().get(0).getValue()));
-                break;
-            case "stringConstant":
-                String str = term.getChildren().get(0).getValue();
-                writePush("constant", str.length());
-                writeCall("String.new", 1);
-                for (char c : str.toCharArray()) {
-                    writePush("constant", c);
-                    writeCall("String.appendChar", 2);
-                }
+    @Override
+    public void visit(Ast.StringExpr stringExpr) {
+        if (!options.poolStrings) {
+            writeNewString(stringExpr.value);
+            return;
+        }
+        // the slot is 0 until the first evaluation stores the string, an object is never at address 0
+        Integer slot = stringPool.get(stringExpr.value);
+        if (slot == null) {
+            slot = nStatics + (hasFreeList() ? 1 : 0) + stringPool.size();
+            stringPool.put(stringExpr.value, slot);
+        }
+        int stringCount = this.stringCount++;
+        writePush("static", slot);
+        writeIfGoto("STRING_SET" + stringCount);
+        writeNewString(stringExpr.value);
+        writePop("static", slot);
+        writeLabel("STRING_SET" + stringCount);
+        writePush("static", slot);
+    }
+
+    // true if the class keeps a free list, a class without fields has objects too small to link
+    private boolean hasFreeList() {
+        return options.freeLists && nFields > 0;
+    }
+
+    // Memory.deAlloc(this) in a method or constructor
+    private boolean isDisposal(Ast.CallExpr call) {
+        return "Memory".equals(call.className) && call.name.equals("deAlloc") && call.arguments.size() == 1
+                && call.arguments.get(0) instanceof Ast.KeywordExpr
+                && ((Ast.KeywordExpr) call.arguments.get(0)).keyword.equals("this")
+                && !subroutineKind.equals("function");
+    }
+
+    // String.new and one appendChar per character
+    private void writeNewString(String str) {
+        writePush("constant", str.length());
+        writeCall("String.new", 1);
+        for (char c : str.toCharArray()) {
+            writePush("constant", c);
+            writeCall("String.appendChar", 2);
+        }
+    }
+
+    @Override
+    public void visit(Ast.KeywordExpr keywordExpr) {
+        switch (keywordExpr.keyword) {
+            case "true":
+                writePush("constant", 0);
+                writeArithmetic("not");
                 break;
-            case "keyword":
-                String kw = term.getChildren().get(0).getValue();
-                switch (kw) {
-                    case "true":
-                        writePush("constant", 0);
-                        writeArithmetic("not");
-                        break;
-                    case "false":
-                    case "null":
-                        writePush("constant", 0);
-                        break;
-                    case "this":
-                        writePush("pointer", 0);
-                        break;
-                }
+            case "false":
+            case "null":
+                writePush("constant", 0);
                 break;
-            case "symbol":
-                String symbol = term.getChildren().get(0).getValue();
-                if (symbol.equals("~")) {
-                    writeTerm(term.getChildren().get(1));
-                    writeArithmetic("not");
-                } else if (symbol.equals("-")) {
-                    writeTerm(term.getChildren().get(1));
-                    writeArithmetic("neg");
-                } else {
-                    writeExpression(term.getChildren().get(1));
-                }
+            case "this":
+                writePush("pointer", inlined != null && inlinedOnThat ? 1 : 0);
                 break;
-            case "identifier":
-                String varName = term.getChildren().get(0).getValue();
-                String subroutine = "";
-                Node expressions;
-                if (term.getChildren().size() == 1) { // varName
-                    writePush(CompilationEngine.SYMBOL_TABLE.getVmKind(varName), CompilationEngine.SYMBOL_TABLE.getIndex(varName));
-                } else if (term.getChildren().get(1).getValue().equals("(")) { // subroutine(expressions)
-                    subroutine = term.getChildren().get(0).getValue();
-                    expressions = term.getChildren().get(2);
-                    writeSubroutineCall(subroutine, expressions);
-                } else if (term.getChildren().get(1).getValue().equals(".")) { // (class|varName).subroutine(expressions)
-                    subroutine = term.getChildren().get(2).getValue();
-                    expressions = term.getChildren().get(4);
-                    writeSubroutineCall(varName, subroutine, expressions);
-                } else if (term.getChildren().get(1).getValue().equals("[")) { //varName[expression]
-                    Node expression = term.getChildren().get(2);
-                    writeExpression(expression);
-                    writePush(CompilationEngine.SYMBOL_TABLE.getVmKind(varName), CompilationEngine.SYMBOL_TABLE.getIndex(varName));
-                    writeArithmetic("add");
-                    writePop("pointer", 1);
-                    writePush("that", 0);
+        }
+    }
+
+    @Override
+    public void visit(Ast.VarExpr varExpr) {
+        writePushVariable(varExpr.variable);
+    }
+
+    //varName[expression]
+    @Override
+    public void visit(Ast.ArrayExpr arrayExpr) {
+        writePush("that", writeThat(arrayExpr.array, arrayExpr.index));
+    }
+
+    /**
+     * Points pointer 1 at an array element, unless it already does
+     *
+     * @param array
+     * @param index
+     * @return index of the element in the that segment: the constant index, or 0
+     */
+    private int writeThat(Ast.Variable array, Ast.Expression index) {
+        Integer value = getConstantIndex(index);
+        boolean known = thatArray != null && isSame(thatArray, array);
+        if (value != null) {
+            if (!known || thatIndex != null) {
+                writePushVariable(array);
+                writePop("pointer", 1);
+                thatArray = array;
+                thatIndex = null;
+            }
+            return value;
+        }
+        if (!known || thatIndex == null || !isSame(thatIndex, index)) {
+            index.accept(this);
+            writePushVariable(array);
+            writeArithmetic("add");
+            writePop("pointer", 1);
+            boolean pure = ConstantFolder.isPure(index);
+            thatArray = pure ? array : null;
+            thatIndex = pure ? index : null;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns whether pointer 1 still points at the element array[index] after an expression, with pure: the
+     * expression has no side effects
+     */
+    private boolean keepsThat(Ast.Expression expression, Ast.Variable array, Ast.Expression index, boolean pure) {
+        if (expression instanceof Ast.ArrayExpr) {
+            // the same element, and no call in the expression changed its index before
+            Ast.ArrayExpr arrayExpr = (Ast.ArrayExpr) expression;
+            Integer value = getConstantIndex(index);
+            return pure && isSame(arrayExpr.array, array) && (value != null ? getConstantIndex(arrayExpr.index) != null
+                    : isSame(arrayExpr.index, index));
+        } else if (expression instanceof Ast.CallExpr) {
+            Ast.CallExpr call = (Ast.CallExpr) expression;
+            if (call.receiver != null && inliner != null && inliner.get(call, className) != null) {
+                return false; // the receiver goes to pointer 1
+            }
+            for (Ast.Expression argument : call.arguments) {
+                if (!keepsThat(argument, array, index, pure)) {
+                    return false;
                 }
+            }
+        } else if (expression instanceof Ast.UnaryExpr) {
+            return keepsThat(((Ast.UnaryExpr) expression).operand, array, index, pure);
+        } else if (expression instanceof Ast.BinaryExpr) {
+            return keepsThat(((Ast.BinaryExpr) expression).left, array, index, pure)
+                    && keepsThat(((Ast.BinaryExpr) expression).right, array, index, pure);
+        } else if (expression instanceof Ast.ParenExpr) {
+            return keepsThat(((Ast.ParenExpr) expression).expression, array, index, pure);
+        }
+        return true;
+    }
+
+    // index read as 'that <index>', null if it is not a constant
+    private static Integer getConstantIndex(Ast.Expression index) {
+        Integer value = ConstantFolder.getConstant(index);
+        return value != null && value >= 0 ? value : null;
+    }
 
+    private static boolean isSame(Ast.Variable a, Ast.Variable b) {
+        return a.kind == b.kind && a.index == b.index;
+    }
+
+    // true if two expressions without calls or array accesses are the same
+    private static boolean isSame(Ast.Expression a, Ast.Expression b) {
+        if (a instanceof Ast.IntegerExpr && b instanceof Ast.IntegerExpr) {
+            return ((Ast.IntegerExpr) a).value == ((Ast.IntegerExpr) b).value;
+        } else if (a instanceof Ast.KeywordExpr && b instanceof Ast.KeywordExpr) {
+            return ((Ast.KeywordExpr) a).keyword.equals(((Ast.KeywordExpr) b).keyword);
+        } else if (a instanceof Ast.VarExpr && b instanceof Ast.VarExpr) {
+            return isSame(((Ast.VarExpr) a).variable, ((Ast.VarExpr) b).variable);
+        } else if (a instanceof Ast.UnaryExpr && b instanceof Ast.UnaryExpr) {
+            return ((Ast.UnaryExpr) a).op == ((Ast.UnaryExpr) b).op
+                    && isSame(((Ast.UnaryExpr) a).operand, ((Ast.UnaryExpr) b).operand);
+        } else if (a instanceof Ast.BinaryExpr && b instanceof Ast.BinaryExpr) {
+            Ast.BinaryExpr binaryA = (Ast.BinaryExpr) a;
+            Ast.BinaryExpr binaryB = (Ast.BinaryExpr) b;
+            return binaryA.op == binaryB.op && isSame(binaryA.left, binaryB.left)
+                    && isSame(binaryA.right, binaryB.right);
+        } else if (a instanceof Ast.ParenExpr && b instanceof Ast.ParenExpr) {
+            return isSame(((Ast.ParenExpr) a).expression, ((Ast.ParenExpr) b).expression);
         }
+        return false;
+    }
+
+    // pointer 1 may point anywhere
+    private void forgetThat() {
+        thatArray = null;
+        thatIndex = null;
+    }
+
+    @Override
+    public void visit(Ast.ParenExpr parenExpr) {
+        parenExpr.expression.accept(this);
     }
 
     // push <kind> <index>
@@ -327,6 +959,7 @@ public class VMWriter {
     // label <name>
     void writeLabel(String label) {
         writeToFile(String.format("label %s", label));
+        forgetThat();
     }
 
     // goto <name>
@@ -342,6 +975,8 @@ public class VMWriter {
     // call <class>.<function> <number of args>
     void writeCall(String function, int nArguments) {
         writeToFile(String.format("call %s %d", function, nArguments));
+        forgetThat();
+        forgetCommon();
     }
 
     // function <class>.<function> <number of local variable>
@@ -349,6 +984,7 @@ public class VMWriter {
         writeToFile(String.format("function %s %d", function, nLocals));
         ifCount = 0;
         whileCount = 0;
+        stringCount = 0;
     }
 
     // flushes buffer memory to the output file
@@ -0,0 +1,459 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams the syntax tree of a class as parse tree xml to a Writer while visiting it, without building the document
+ * as a string. Indentation and escaped text go through reusable char buffers.
+ * <p>
+ * The xml lists every token of the class: keywords and symbols are written back from the tree, identifiers come with
+ * their symbol table kind, type and index.
+ */
+class XmlWriter implements AstVisitor {
+    private final Writer writer;
+    private final int indentWidth;
+    private char[] indent = new char[0];
+    private char[] text = new char[64]; // escaped text of a terminal
+    private int depth = 0;
+
+    /**
+     * @param writer
+     * @param indentWidth: spaces per nesting level, 0 for none
+     */
+    XmlWriter(Writer writer, int indentWidth) {
+        this.writer = writer;
+        this.indentWidth = indentWidth;
+    }
+
+    /**
+     * Returns the xml tag of a token type
+     *
+     * @param tokenType
+     * @return
+     */
+    static String getTagName(Token.TokenType tokenType) {
+        switch (tokenType) {
+            case KEYWORD:
+                return "keyword";
+            case SYMBOL:
+                return "symbol";
+            case INT_CONST:
+                return "integerConstant";
+            case STRING_CONST:
+                return "stringConstant";
+            case IDENTIFIER:
+                return "identifier";
+            default:
+                throw new InvalidTokenException(tokenType.name());
+        }
+    }
+
+    /**
+     * Writes an opening tag on its own line, following elements are nested in it
+     *
+     * @param name
+     */
+    void startElement(String name) {
+        try {
+            writeIndent();
+            writer.write('<');
+            writer.write(name);
+            writer.write(">\n");
+            depth++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the closing tag of the element opened last
+     *
+     * @param name
+     */
+    void endElement(String name) {
+        try {
+            depth--;
+            writeIndent();
+            writer.write("</");
+            writer.write(name);
+            writer.write(">\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a token as &lt;tag&gt;value&lt;/tag&gt;
+     *
+     * @param tagName
+     * @param value
+     */
+    void writeTerminal(String tagName, String value) {
+        writeElement(tagName, value, true);
+    }
+
+    /**
+     * Writes an identifier with its symbol table information
+     *
+     * @param name
+     * @param kind
+     * @param type
+     * @param index
+     * @param defined: true where the identifier is used, false where it is declared
+     */
+    void writeIdentifier(String name, String kind, String type, int index, boolean defined) {
+        startElement("identifier");
+        writeElement("name", name, false);
+        writeElement("kind", kind, false);
+        writeElement("type", String.valueOf(type), false);
+        writeElement("index", String.valueOf(index), false);
+        writeElement("defined", String.valueOf(defined), false);
+        endElement("identifier");
+    }
+
+    private void writeKeyword(String keyword) {
+        writeTerminal("keyword", keyword);
+    }
+
+    private void writeSymbol(String symbol) {
+        writeTerminal("symbol", symbol);
+    }
+
+    // 'int' | 'char' | 'boolean' | className
+    private void writeType(String type) {
+        if (isPrimitive(type)) {
+            writeKeyword(type);
+        } else {
+            writeIdentifier(type, "class", null, 0, false);
+        }
+    }
+
+    private static boolean isPrimitive(String type) {
+        return type.equals("int") || type.equals("char") || type.equals("boolean") || type.equals("void");
+    }
+
+    private void writeVariable(Ast.Variable variable, boolean defined) {
+        writeIdentifier(variable.name, variable.kind.name(), variable.type, variable.index, defined);
+    }
+
+    @Override
+    public void visit(Ast.ClassDec classDec) {
+        startElement("class");
+        writeKeyword("class");
+        writeIdentifier(classDec.name, "class", null, 0, false);
+        writeSymbol("{");
+        for (Ast.ClassVarDec classVarDec : classDec.classVarDecs) {
+            classVarDec.accept(this);
+        }
+        for (Ast.SubroutineDec subroutineDec : classDec.subroutineDecs) {
+            subroutineDec.accept(this);
+        }
+        writeSymbol("}");
+        endElement("class");
+    }
+
+    @Override
+    public void visit(Ast.ClassVarDec classVarDec) {
+        startElement("classVarDec");
+        writeKeyword(classVarDec.kind);
+        if (classVarDec.values != null) {
+            writeKeyword("final");
+        }
+        writeType(classVarDec.type);
+        for (int i = 0; i < classVarDec.variables.size(); i++) {
+            if (i > 0) {
+                writeSymbol(",");
+            }
+            Ast.Variable variable = classVarDec.variables.get(i);
+            if (classVarDec.values != null) {
+                writeIdentifier(variable.name, "constant", variable.type, variable.index, false);
+                writeSymbol("=");
+                writeExpression(classVarDec.values.get(i));
+            } else {
+                writeIdentifier(variable.name, classVarDec.kind, variable.type, variable.index, false);
+            }
+        }
+        writeSymbol(";");
+        endElement("classVarDec");
+    }
+
+    @Override
+    public void visit(Ast.SubroutineDec subroutineDec) {
+        startElement("subroutineDec");
+        writeKeyword(subroutineDec.kind);
+        writeType(subroutineDec.returnType);
+        // the subroutine name carries the tag of its return type as type
+        String type = subroutineDec.returnType.equals("void") ? "void"
+                : isPrimitive(subroutineDec.returnType) ? "keyword" : "identifier";
+        writeIdentifier(subroutineDec.name, subroutineDec.kind, type, 0, false);
+        writeSymbol("(");
+        startElement("parameterList");
+        for (int i = 0; i < subroutineDec.parameters.size(); i++) {
+            if (i > 0) {
+                writeSymbol(",");
+            }
+            writeType(subroutineDec.parameters.get(i).type);
+            writeVariable(subroutineDec.parameters.get(i), false);
+        }
+        endElement("parameterList");
+        writeSymbol(")");
+        startElement("subroutineBody");
+        writeSymbol("{");
+        for (Ast.VarDec varDec : subroutineDec.varDecs) {
+            varDec.accept(this);
+        }
+        writeStatements(subroutineDec.statements);
+        writeSymbol("}");
+        endElement("subroutineBody");
+        endElement("subroutineDec");
+    }
+
+    @Override
+    public void visit(Ast.VarDec varDec) {
+        startElement("varDec");
+        writeKeyword("var");
+        writeType(varDec.type);
+        for (int i = 0; i < varDec.variables.size(); i++) {
+            Ast.Variable variable = varDec.variables.get(i);
+            if (i == 0) {
+                writeIdentifier(variable.name, "var", variable.type, variable.index, false);
+            } else {
+                writeSymbol(",");
+                writeVariable(variable, false);
+            }
+        }
+        writeSymbol(";");
+        endElement("varDec");
+    }
+
+    private void writeStatements(List<Ast.Statement> statements) {
+        startElement("statements");
+        for (Ast.Statement statement : statements) {
+            statement.accept(this);
+        }
+        endElement("statements");
+    }
+
+    @Override
+    public void visit(Ast.LetStatement letStatement) {
+        startElement("letStatement");
+        writeKeyword("let");
+        writeVariable(letStatement.variable, true);
+        if (letStatement.index != null) {
+            writeSymbol("[");
+            writeExpression(letStatement.index);
+            writeSymbol("]");
+        }
+        writeSymbol("=");
+        writeExpression(letStatement.value);
+        writeSymbol(";");
+        endElement("letStatement");
+    }
+
+    @Override
+    public void visit(Ast.IfStatement ifStatement) {
+        startElement("ifStatement");
+        writeKeyword("if");
+        writeSymbol("(");
+        writeExpression(ifStatement.condition);
+        writeSymbol(")");
+        writeSymbol("{");
+        writeStatements(ifStatement.thenStatements);
+        writeSymbol("}");
+        if (ifStatement.elseStatements != null) {
+            writeKeyword("else");
+            writeSymbol("{");
+            writeStatements(ifStatement.elseStatements);
+            writeSymbol("}");
+        }
+        endElement("ifStatement");
+    }
+
+    @Override
+    public void visit(Ast.WhileStatement whileStatement) {
+        startElement("whileStatement");
+        writeKeyword("while");
+        writeSymbol("(");
+        writeExpression(whileStatement.condition);
+        writeSymbol(")");
+        writeSymbol("{");
+        writeStatements(whileStatement.statements);
+        writeSymbol("}");
+        endElement("whileStatement");
+    }
+
+    @Override
+    public void visit(Ast.DoStatement doStatement) {
+        startElement("doStatement");
+        writeKeyword("do");
+        doStatement.call.accept(this);
+        writeSymbol(";");
+        endElement("doStatement");
+    }
+
+    @Override
+    public void visit(Ast.ReturnStatement returnStatement) {
+        startElement("returnStatement");
+        writeKeyword("return");
+        if (returnStatement.value != null) {
+            writeExpression(returnStatement.value);
+        }
+        writeSymbol(";");
+        endElement("returnStatement");
+    }
+
+    // term (op term)*, the left associative BinaryExpr chain is written flat
+    private void writeExpression(Ast.Expression expression) {
+        startElement("expression");
+        if (expression instanceof Ast.BinaryExpr) {
+            expression.accept(this);
+        } else {
+            writeTerm(expression);
+        }
+        endElement("expression");
+    }
+
+    private void writeTerm(Ast.Expression expression) {
+        startElement("term");
+        expression.accept(this);
+        endElement("term");
+    }
+
+    @Override
+    public void visit(Ast.BinaryExpr binaryExpr) {
+        if (binaryExpr.left instanceof Ast.BinaryExpr) {
+            binaryExpr.left.accept(this);
+        } else {
+            writeTerm(binaryExpr.left);
+        }
+        writeSymbol(String.valueOf(binaryExpr.op));
+        writeTerm(binaryExpr.right);
+    }
+
+    @Override
+    public void visit(Ast.UnaryExpr unaryExpr) {
+        writeSymbol(String.valueOf(unaryExpr.op));
+        writeTerm(unaryExpr.operand);
+    }
+
+    @Override
+    public void visit(Ast.IntegerExpr integerExpr) {
+        writeTerminal("integerConstant", String.valueOf(integerExpr.value));
+    }
+
+    @Override
+    public void visit(Ast.StringExpr stringExpr) {
+        writeTerminal("stringConstant", stringExpr.value);
+    }
+
+    @Override
+    public void visit(Ast.KeywordExpr keywordExpr) {
+        writeKeyword(keywordExpr.keyword);
+    }
+
+    @Override
+    public void visit(Ast.VarExpr varExpr) {
+        writeVariable(varExpr.variable, true);
+    }
+
+    @Override
+    public void visit(Ast.ArrayExpr arrayExpr) {
+        writeVariable(arrayExpr.array, true);
+        writeSymbol("[");
+        writeExpression(arrayExpr.index);
+        writeSymbol("]");
+    }
+
+    // subroutine call parts, the enclosing term or do statement writes the rest
+    @Override
+    public void visit(Ast.CallExpr call) {
+        if (call.receiver != null) {
+            writeVariable(call.receiver, true);
+            writeSymbol(".");
+        } else if (call.className != null) {
+            writeIdentifier(call.className, "class", null, 0, true);
+            writeSymbol(".");
+        }
+        writeIdentifier(call.name, "subroutine", null, 0, true);
+        writeSymbol("(");
+        startElement("expressionList");
+        for (int i = 0; i < call.arguments.size(); i++) {
+            if (i > 0) {
+                writeSymbol(",");
+            }
+            writeExpression(call.arguments.get(i));
+        }
+        endElement("expressionList");
+        writeSymbol(")");
+    }
+
+    @Override
+    public void visit(Ast.ParenExpr parenExpr) {
+        writeSymbol("(");
+        writeExpression(parenExpr.expression);
+        writeSymbol(")");
+    }
+
+    // <name>value</name> on one line
+    private void writeElement(String name, String value, boolean escape) {
+        try {
+            writeIndent();
+            writer.write('<');
+            writer.write(name);
+            writer.write('>');
+            if (escape) {
+                writeEscaped(value);
+            } else {
+                writer.write(value);
+            }
+            writer.write("</");
+            writer.write(name);
+            writer.write(">\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // escapes &, < and >, and drops double quotes
+    private void writeEscaped(String value) throws IOException {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (length + 5 > text.length) {
+                text = Arrays.copyOf(text, text.length * 2);
+            }
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    length = append(length, "&amp;");
+                    break;
+                case '<':
+                    length = append(length, "&lt;");
+                    break;
+                case '>':
+                    length = append(length, "&gt;");
+                    break;
+                case '"':
+                    break;
+                default:
+                    text[length++] = c;
+            }
+        }
+        writer.write(text, 0, length);
+    }
+
+    private int append(int length, String entity) {
+        entity.getChars(0, entity.length(), text, length);
+        return length + entity.length();
+    }
+
+    private void writeIndent() throws IOException {
+        int width = depth * indentWidth;
+        if (width > indent.length) {
+            indent = new char[Math.max(width, indent.length * 2)];
+            Arrays.fill(indent, ' ');
+        }
+        writer.write(indent, 0, width);
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Compiles each program in this directory and runs it on the VM interpreter with its builtin OS, once with the
+# default options and once per line of its options.txt, and compares what it prints with its expected.txt.
+# Build compiler, vm-translator and vm-interpreter first (mvn compile in each).
+#
+# Usage: run.sh [program directory...]
+
+root=$(cd "$(dirname "$0")/../../../.." && pwd)
+compiler="$root/compiler/target/classes"
+interpreter="$root/vm-interpreter/target/classes:$root/vm-translator/target/classes"
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+if [ $# -eq 0 ]; then
+    set -- "$(dirname "$0")"/*/
+fi
+
+failed=0
+for program in "$@"; do
+    name=$(basename "$program")
+    expected=$(cat "$program/expected.txt")
+    { echo; [ -f "$program/options.txt" ] && cat "$program/options.txt"; } | while read -r options; do
+        rm -rf "$work/$name"
+        cp -r "$program" "$work/$name"
+        # options are split into arguments on purpose
+        if ! java -cp "$compiler" Compiler "$work/$name" --rebuild $options > "$work/compile.log" 2>&1; then
+            echo "FAIL $name [$options]: compile error"
+            cat "$work/compile.log"
+            exit 1
+        fi
+        actual=$(java -cp "$interpreter" Interpreter "$work/$name/output" --builtin-os 2> /dev/null)
+        if [ "$actual" = "$expected" ]; then
+            echo "ok   $name [$options]"
+        else
+            echo "FAIL $name [$options]: printed '$actual', expected '$expected'"
+            exit 1
+        fi
+    done || failed=1
+done
+exit $failed
@@ -0,0 +1,454 @@
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Ahead-of-time compiler from VM code to the JVM. Each VM function becomes a Java method of a generated class which is
+ * compiled in-process with the JDK compiler:
+ * <ul>
+ * <li>arguments become method parameters and locals become Java locals</li>
+ * <li>the operand stack becomes Java locals s0, s1, ... since the stack depth at each command is known statically</li>
+ * <li>THIS and THAT become Java locals, read from RAM[3] and RAM[4] on entry and written back before each call</li>
+ * <li>temp, static and the this/that segments stay in the short[] RAM, at the same addresses as in the interpreter</li>
+ * <li>functions with labels run as a switch over their basic blocks inside a loop</li>
+ * </ul>
+ * Only the RAM stack area differs from a run of the interpreter, the stack lives on the Java stack instead.
+ */
+public class AotCompiler {
+    static final String CLASS_NAME = "JackProgram";
+
+    private final List<VmFunction> functions;
+    private final Bytecode bytecode;
+    private final boolean builtinOs;
+    private final Map<String, String> methodNames = new HashMap<>();
+    private final Map<String, Integer> parameterCounts = new HashMap<>();
+    private final StringBuilder source = new StringBuilder();
+
+    private AotCompiler(List<VmFunction> functions, boolean builtinOs) {
+        this.functions = functions;
+        this.builtinOs = builtinOs;
+        // decoding checks calls and labels, and assigns the static addresses shared with the interpreter
+        this.bytecode = Bytecode.decode(functions, builtinOs);
+    }
+
+    /**
+     * Generates the Java source of a program
+     *
+     * @param functions: functions of all .vm files of the program
+     * @param builtinOs: true if calls to functions missing from the program go to the Java OS
+     * @return
+     */
+    static String generate(List<VmFunction> functions, boolean builtinOs) {
+        AotCompiler aotCompiler = new AotCompiler(functions, builtinOs);
+        aotCompiler.writeClass();
+        return aotCompiler.source.toString();
+    }
+
+    /**
+     * Generates, compiles and loads a program
+     *
+     * @param functions: functions of all .vm files of the program
+     * @param builtinOs: true if calls to functions missing from the program go to the Java OS
+     * @param ram:       RAM the program runs on
+     * @param os:        OS implementation working on the same RAM
+     * @return
+     */
+    static AotProgram compile(List<VmFunction> functions, boolean builtinOs, short[] ram, JackOs os) {
+        String source = generate(functions, builtinOs);
+        JavaCompiler javaCompiler = ToolProvider.getSystemJavaCompiler();
+        if (javaCompiler == null) {
+            throw new IllegalStateException("No Java compiler available, AOT compilation needs a JDK");
+        }
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("jack-aot");
+            Path sourceFile = directory.resolve(CLASS_NAME + ".java");
+            Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int result = javaCompiler.run(null, null, errors, "-classpath", System.getProperty("java.class.path"),
+                    "-d", directory.toString(), sourceFile.toString());
+            if (result != 0) {
+                throw new IllegalStateException("Compilation of generated code failed:\n" + errors);
+            }
+            try (URLClassLoader classLoader = new URLClassLoader(new URL[]{directory.toUri().toURL()},
+                    AotCompiler.class.getClassLoader())) {
+                Class<?> programClass = classLoader.loadClass(CLASS_NAME);
+                return (AotProgram) programClass.getConstructor(short[].class, JackOs.class).newInstance(ram, os);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (directory != null) {
+                for (File file : Objects.requireNonNull(directory.toFile().listFiles())) {
+                    file.delete();
+                }
+                directory.toFile().delete();
+            }
+        }
+    }
+
+    private void writeClass() {
+        String entry = null;
+        for (VmFunction function : functions) {
+            if (function.getName() == null) {
+                continue;
+            }
+            String name = function.getName();
+            methodNames.put(name, String.format("f%d_%s", methodNames.size(), name.replaceAll("[^A-Za-z0-9]", "_")));
+            parameterCounts.put(name, getParameterCount(name));
+            if (name.equals("Sys.init") || (name.equals("Main.main") && entry == null)) {
+                entry = name;
+            }
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("AOT compilation needs an entry function, Sys.init or Main.main");
+        }
+
+        source.append("public class ").append(CLASS_NAME).append(" implements AotProgram {\n");
+        source.append("    private final short[] ram;\n");
+        source.append("    private final JackOs os;\n\n");
+        source.append("    public ").append(CLASS_NAME).append("(short[] ram, JackOs os) {\n");
+        source.append("        this.ram = ram;\n");
+        source.append("        this.os = os;\n");
+        source.append("    }\n\n");
+        source.append("    @Override\n");
+        source.append("    public void run() {\n");
+        source.append("        ").append(methodNames.get(entry)).append("(")
+                .append(String.join(", ", Collections.nCopies(parameterCounts.get(entry), "0"))).append(");\n");
+        source.append("    }\n");
+        for (VmFunction function : functions) {
+            if (function.getName() != null) {
+                new MethodWriter(function).write();
+            }
+        }
+        source.append("}\n");
+    }
+
+    // number of arguments of a function: the most any caller passes or, if never called, the highest argument used
+    private int getParameterCount(String name) {
+        int count = -1;
+        for (VmFunction function : functions) {
+            for (VmCommand command : function.getCommands()) {
+                if (command.getType() == CommandType.C_FUNCTION_CALL && command.getArg1().equals(name)) {
+                    count = Math.max(count, Integer.valueOf(command.getArg2()));
+                }
+            }
+        }
+        if (count >= 0) {
+            return count;
+        }
+        count = 0;
+        for (VmFunction function : functions) {
+            if (name.equals(function.getName())) {
+                for (VmCommand command : function.getCommands()) {
+                    if ("argument".equals(command.getArg1())) {
+                        count = Math.max(count, Integer.valueOf(command.getArg2()) + 1);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the Java method of one VM function
+     */
+    private class MethodWriter {
+        private final VmFunction function;
+        private final List<VmCommand> commands;
+        private final Map<String, Integer> labels = new HashMap<>(); // label -> command index
+        private final Map<String, Integer> blocks = new HashMap<>(); // label -> case of the block switch
+        private final int[] depths; // stack depth before each command, -1 if unreachable
+        private int maxDepth = 0;
+
+        MethodWriter(VmFunction function) {
+            this.function = function;
+            this.commands = function.getCommands();
+            this.depths = new int[commands.size()];
+        }
+
+        void write() {
+            for (int i = 0; i < commands.size(); i++) {
+                if (commands.get(i).getType() == CommandType.C_LABEL) {
+                    labels.put(commands.get(i).getArg1(), i);
+                }
+            }
+            computeDepths();
+            for (int i = 0; i < commands.size(); i++) {
+                if (commands.get(i).getType() == CommandType.C_LABEL && depths[i] >= 0) {
+                    blocks.put(commands.get(i).getArg1(), blocks.size() + 1);
+                }
+            }
+
+            int nLocals = function.getNLocals();
+            int nParameters = parameterCounts.get(function.getName());
+            List<String> parameters = new ArrayList<>();
+            for (int i = 0; i < nParameters; i++) {
+                parameters.add("int a" + i);
+            }
+            source.append("\n    // ").append(function.getName()).append("\n");
+            source.append("    private int ").append(methodNames.get(function.getName())).append("(")
+                    .append(String.join(", ", parameters)).append(") {\n");
+            source.append("        final short[] ram = this.ram;\n");
+            source.append("        int pThis = ram[3];\n");
+            source.append("        int pThat = ram[4];\n");
+            for (int i = 0; i < nLocals; i++) {
+                source.append("        int l").append(i).append(" = 0;\n");
+            }
+            for (int i = 0; i < maxDepth; i++) {
+                source.append("        int s").append(i).append(" = 0;\n");
+            }
+
+            String indent = "        ";
+            if (!blocks.isEmpty()) {
+                source.append("        int pc = 0;\n");
+                source.append("        while (true) {\n");
+                source.append("            switch (pc) {\n");
+                source.append("            case 0:\n");
+                indent = "                ";
+            }
+            for (int i = 1; i < commands.size(); i++) {
+                if (depths[i] >= 0) {
+                    writeCommand(i, indent);
+                }
+            }
+            if (!blocks.isEmpty()) {
+                source.append("            default:\n");
+                source.append("                throw new IllegalStateException();\n");
+                source.append("            }\n");
+                source.append("        }\n");
+            }
+            source.append("    }\n");
+        }
+
+        // stack depth before each command, by following every path from the start of the function
+        private void computeDepths() {
+            Arrays.fill(depths, -1);
+            Deque<Integer> work = new ArrayDeque<>();
+            flow(work, 1, 0);
+            while (!work.isEmpty()) {
+                int i = work.pop();
+                VmCommand command = commands.get(i);
+                int depth = depths[i];
+                switch (command.getType()) {
+                    case C_PUSH:
+                        flow(work, i + 1, depth + 1);
+                        break;
+                    case C_POP:
+                        flow(work, i + 1, need(depth, 1) - 1);
+                        break;
+                    case C_ARITHMETIC:
+                        boolean unary = command.getText().equals("neg") || command.getText().equals("not");
+                        flow(work, i + 1, unary ? need(depth, 1) : need(depth, 2) - 1);
+                        break;
+                    case C_LABEL:
+                        flow(work, i + 1, depth);
+                        break;
+                    case C_GOTO:
+                        flow(work, getLabel(command), depth);
+                        break;
+                    case C_IF_GOTO:
+                        flow(work, getLabel(command), need(depth, 1) - 1);
+                        flow(work, i + 1, depth - 1);
+                        break;
+                    case C_FUNCTION_CALL:
+                        int nArgs = Integer.valueOf(command.getArg2());
+                        flow(work, i + 1, need(depth, nArgs) - nArgs + 1);
+                        break;
+                    case C_FUNCTION_RETURN:
+                        need(depth, 1);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected command in " + function.getName() + ": " + command);
+                }
+            }
+        }
+
+        private void flow(Deque<Integer> work, int next, int depth) {
+            if (next >= commands.size()) {
+                throw new IllegalArgumentException("Control reaches the end of " + function.getName());
+            }
+            maxDepth = Math.max(maxDepth, depth);
+            if (depths[next] < 0) {
+                depths[next] = depth;
+                work.push(next);
+            } else if (depths[next] != depth) {
+                throw new IllegalArgumentException("Stack depth is not static in " + function.getName() + " at "
+                        + commands.get(next));
+            }
+        }
+
+        private int need(int depth, int values) {
+            if (depth < values) {
+                throw new IllegalArgumentException("Stack underflow in " + function.getName());
+            }
+            return depth;
+        }
+
+        private int getLabel(VmCommand command) {
+            Integer label = labels.get(command.getArg1());
+            if (label == null) {
+                throw new IllegalArgumentException("Unknown label " + command.getArg1() + " in " + function.getName());
+            }
+            return label;
+        }
+
+        private void writeCommand(int i, String indent) {
+            VmCommand command = commands.get(i);
+            int depth = depths[i];
+            String top = "s" + (depth - 1);
+            String second = "s" + (depth - 2);
+            switch (command.getType()) {
+                case C_PUSH:
+                    line(indent, "s%d = %s;", depth, read(command.getArg1(), Integer.valueOf(command.getArg2())));
+                    break;
+                case C_POP:
+                    line(indent, write(command.getArg1(), Integer.valueOf(command.getArg2()), top));
+                    break;
+                case C_ARITHMETIC:
+                    switch (command.getText()) {
+                        case "add":
+                            line(indent, "%s = (short) (%s + %s);", second, second, top);
+                            break;
+                        case "sub":
+                            line(indent, "%s = (short) (%s - %s);", second, second, top);
+                            break;
+                        case "neg":
+                            line(indent, "%s = (short) -%s;", top, top);
+                            break;
+                        case "eq":
+                            line(indent, "%s = %s == %s ? -1 : 0;", second, second, top);
+                            break;
+                        case "gt":
+                            line(indent, "%s = %s > %s ? -1 : 0;", second, second, top);
+                            break;
+                        case "lt":
+                            line(indent, "%s = %s < %s ? -1 : 0;", second, second, top);
+                            break;
+                        case "and":
+                            line(indent, "%s = %s & %s;", second, second, top);
+                            break;
+                        case "or":
+                            line(indent, "%s = %s | %s;", second, second, top);
+                            break;
+                        case "not":
+                            line(indent, "%s = ~%s;", top, top);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown command: " + command);
+                    }
+                    break;
+                case C_LABEL:
+                    int block = blocks.get(command.getArg1());
+                    source.append("            case ").append(block).append(":\n");
+                    // 'label L; goto L' is how VM code halts
+                    if (i + 1 < commands.size() && commands.get(i + 1).getType() == CommandType.C_GOTO
+                            && commands.get(i + 1).getArg1().equals(command.getArg1())) {
+                        line(indent, "return os.sysHalt();");
+                    }
+                    break;
+                case C_GOTO:
+                    if (!isHalt(i)) {
+                        line(indent, "pc = %d;", blocks.get(command.getArg1()));
+                        line(indent, "continue;");
+                    }
+                    break;
+                case C_IF_GOTO:
+                    line(indent, "if (%s != 0) {", top);
+                    line(indent, "    pc = %d;", blocks.get(command.getArg1()));
+                    line(indent, "    continue;");
+                    line(indent, "}");
+                    break;
+                case C_FUNCTION_CALL:
+                    writeCall(command.getArg1(), Integer.valueOf(command.getArg2()), depth, indent);
+                    break;
+                case C_FUNCTION_RETURN:
+                    line(indent, "return %s;", top);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected command: " + command);
+            }
+        }
+
+        private boolean isHalt(int i) {
+            VmCommand previous = commands.get(i - 1);
+            return previous.getType() == CommandType.C_LABEL && previous.getArg1().equals(commands.get(i).getArg1());
+        }
+
+        private void writeCall(String callee, int nArgs, int depth, String indent) {
+            List<String> arguments = new ArrayList<>();
+            String target;
+            int nParameters;
+            if (methodNames.containsKey(callee)) {
+                line(indent, "ram[3] = (short) pThis;");
+                line(indent, "ram[4] = (short) pThat;");
+                target = methodNames.get(callee);
+                nParameters = parameterCounts.get(callee);
+            } else {
+                int builtin = builtinOs ? JackOs.builtinId(callee) : -1;
+                if (builtin < 0) {
+                    throw new IllegalArgumentException("Unknown function: " + callee);
+                }
+                target = "os." + JackOs.methodName(callee);
+                nParameters = JackOs.ARGUMENTS[builtin];
+            }
+            for (int i = 0; i < nParameters; i++) {
+                arguments.add(i < nArgs ? "s" + (depth - nArgs + i) : "0");
+            }
+            line(indent, "s%d = %s(%s);", depth - nArgs, target, String.join(", ", arguments));
+        }
+
+        // Java expression reading a segment entry
+        private String read(String segment, int index) {
+            switch (segment) {
+                case "constant":
+                    return String.valueOf(index);
+                case "local":
+                    return "l" + index;
+                case "argument":
+                    return "a" + index;
+                case "this":
+                    return String.format("ram[pThis + %d]", index);
+                case "that":
+                    return String.format("ram[pThat + %d]", index);
+                case "pointer":
+                    return index == 0 ? "pThis" : "pThat";
+                case "temp":
+                    return String.format("ram[%d]", 5 + index);
+                case "static":
+                    return String.format("ram[%d]", bytecode.getStaticAddress(function.getVmFileName(), index));
+                default:
+                    throw new IllegalArgumentException("Unknown segment: " + segment);
+            }
+        }
+
+        // Java statement writing value to a segment entry
+        private String write(String segment, int index, String value) {
+            switch (segment) {
+                case "local":
+                    return String.format("l%d = %s;", index, value);
+                case "argument":
+                    return String.format("a%d = %s;", index, value);
+                case "pointer":
+                    return String.format("%s = %s;", index == 0 ? "pThis" : "pThat", value);
+                default:
+                    return String.format("%s = (short) %s;", read(segment, index), value);
+            }
+        }
+
+        private void line(String indent, String format, Object... args) {
+            source.append(indent).append(String.format(format, args)).append("\n");
+        }
+    }
+}
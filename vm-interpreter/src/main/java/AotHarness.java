@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Runs a program with the interpreter and compiled ahead-of-time, then compares the output and the final RAM outside
+ * of the registers and the stack (statics, heap, screen and keyboard). The stack differs by design, the AOT code keeps
+ * it on the Java stack. The program has to halt, the AOT code has no step limit.
+ * <p>
+ * Usage: AotHarness &lt;file.vm or directory&gt; [--builtin-os] [--max-steps N] [--source file]
+ */
+public class AotHarness {
+    private static final int[][] COMPARED_RANGES = {{Bytecode.STATIC_BASE, Bytecode.STATIC_END}, {2048, 24577}};
+    private static final long JAVA_STACK_SIZE = 512L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String inputPath = null;
+        boolean builtinOs = false;
+        long maxSteps = Long.MAX_VALUE;
+        File sourceFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--builtin-os")) {
+                builtinOs = true;
+            } else if (args[i].equals("--max-steps")) {
+                maxSteps = Long.valueOf(args[++i]);
+            } else if (args[i].equals("--source")) {
+                sourceFile = new File(args[++i]);
+            } else {
+                inputPath = args[i];
+            }
+        }
+        List<VmFunction> functions = Interpreter.load(new File(inputPath));
+        if (sourceFile != null) {
+            try (Writer writer = new FileWriter(sourceFile)) {
+                writer.write(AotCompiler.generate(functions, builtinOs));
+            }
+            System.err.println("Successfully wrote to: " + sourceFile);
+        }
+
+        ByteArrayOutputStream interpreterOutput = new ByteArrayOutputStream();
+        Interpreter interpreter = new Interpreter(Bytecode.decode(functions, builtinOs),
+                new PrintStream(interpreterOutput, true), new StringReader(""));
+        long start = System.nanoTime();
+        boolean halted = interpreter.run(maxSteps);
+        long interpreterTime = System.nanoTime() - start;
+        if (!halted) {
+            System.err.println(String.format("Interpreter stopped after %d VM commands, program has to halt", maxSteps));
+            System.exit(1);
+        }
+
+        ByteArrayOutputStream aotOutput = new ByteArrayOutputStream();
+        short[] ram = new short[Interpreter.RAM_SIZE];
+        JackOs os = new JackOs(ram, new PrintStream(aotOutput, true), new StringReader(""));
+        start = System.nanoTime();
+        AotProgram program = AotCompiler.compile(functions, builtinOs, ram, os);
+        long compileTime = System.nanoTime() - start;
+        RuntimeException[] failure = new RuntimeException[1];
+        // deep Jack recursion becomes deep Java recursion
+        Thread thread = new Thread(null, () -> {
+            try {
+                program.run();
+            } catch (JackOs.Halt halt) {
+                // Sys.halt or the 'label L; goto L' idiom
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            }
+        }, "aot", JAVA_STACK_SIZE);
+        start = System.nanoTime();
+        thread.start();
+        thread.join();
+        long aotTime = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        int differences = 0;
+        short[] expected = interpreter.getRam();
+        for (int[] range : COMPARED_RANGES) {
+            for (int address = range[0]; address < range[1]; address++) {
+                if (expected[address] != ram[address]) {
+                    if (differences < 10) {
+                        System.err.println(String.format("RAM[%d]: interpreter %d, AOT %d", address,
+                                expected[address], ram[address]));
+                    }
+                    differences++;
+                }
+            }
+        }
+        String output = aotOutput.toString(StandardCharsets.UTF_8.name());
+        if (!interpreterOutput.toString(StandardCharsets.UTF_8.name()).equals(output)) {
+            System.err.println("Output differs");
+            differences++;
+        }
+        System.out.print(output);
+        System.out.flush();
+
+        System.err.println(String.format("Interpreter: %d VM commands in %d ms", interpreter.getSteps(),
+                interpreterTime / 1_000_000));
+        System.err.println(String.format("AOT: compiled in %d ms, ran in %d ms (%.1fx)", compileTime / 1_000_000,
+                aotTime / 1_000_000, (double) interpreterTime / Math.max(aotTime, 1)));
+        if (differences > 0) {
+            System.err.println(String.format("%d differences", differences));
+            System.exit(1);
+        }
+        System.err.println("RAM and output match");
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * VM program compiled to JVM bytecode by AotCompiler
+ */
+public interface AotProgram {
+    /**
+     * Runs the entry function of the program (Sys.init, else Main.main)
+     */
+    void run();
+}
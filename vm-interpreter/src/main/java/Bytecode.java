@@ -0,0 +1,283 @@
+import java.util.*;
+
+/**
+ * VM program pre-decoded into an int array. Each instruction is an opcode followed by its operands. Labels, functions
+ * and static variables are resolved to code and RAM addresses, and label commands are dropped, so the interpreter never
+ * looks at a string.
+ * <p>
+ * If the program has an entry function (Sys.init, else Main.main), the code starts with a call to it followed by HALT,
+ * just like the bootstrap code of the translator. Otherwise the commands outside of functions run first.
+ */
+class Bytecode {
+    static final int PUSH_CONSTANT = 0; // value
+    static final int PUSH_LOCAL = 1; // index
+    static final int PUSH_ARGUMENT = 2; // index
+    static final int PUSH_THIS = 3; // index
+    static final int PUSH_THAT = 4; // index
+    static final int PUSH_RAM = 5; // address, for static, temp and pointer
+    static final int POP_LOCAL = 6; // index
+    static final int POP_ARGUMENT = 7; // index
+    static final int POP_THIS = 8; // index
+    static final int POP_THAT = 9; // index
+    static final int POP_RAM = 10; // address
+    static final int ADD = 11;
+    static final int SUB = 12;
+    static final int NEG = 13;
+    static final int EQ = 14;
+    static final int GT = 15;
+    static final int LT = 16;
+    static final int AND = 17;
+    static final int OR = 18;
+    static final int NOT = 19;
+    static final int GOTO = 20; // target
+    static final int IF_GOTO = 21; // target
+    static final int CALL = 22; // target, number of arguments
+    static final int CALL_BUILTIN = 23; // builtin id, number of arguments
+    static final int FUNCTION = 24; // number of locals
+    static final int RETURN = 25;
+    static final int HALT = 26;
+
+    static final int STATIC_BASE = 16;
+    static final int STATIC_END = 256;
+    private static final String[] ARITHMETIC = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+
+    private int[] code = new int[1024];
+    private int size = 0;
+    private final Map<String, Integer> functionAddresses = new HashMap<>();
+    private final TreeMap<Integer, String> functionsByAddress = new TreeMap<>();
+    private final Map<String, Integer> staticAddresses = new HashMap<>();
+    private final Map<Integer, String> calls = new HashMap<>(); // operand position -> called function
+    private final List<VmFunction> functions;
+
+    private Bytecode(List<VmFunction> functions) {
+        this.functions = functions;
+    }
+
+    /**
+     * Decodes the functions of a program
+     *
+     * @param functions:  functions of all .vm files of the program
+     * @param builtinOs:  true if calls to functions missing from the program go to the Java OS
+     * @return
+     */
+    static Bytecode decode(List<VmFunction> functions, boolean builtinOs) {
+        Bytecode bytecode = new Bytecode(functions);
+        bytecode.decode(builtinOs);
+        return bytecode;
+    }
+
+    private void decode(boolean builtinOs) {
+        String entry = getEntry();
+        if (entry != null) {
+            emit(CALL);
+            calls.put(size, entry);
+            emit(0, 0);
+            emit(HALT);
+        }
+        for (VmFunction function : functions) {
+            if (function.getName() == null) {
+                decode(function);
+            }
+        }
+        emit(HALT);
+        for (VmFunction function : functions) {
+            if (function.getName() != null) {
+                if (functionAddresses.containsKey(function.getName())) {
+                    throw new RuntimeException("Function defined twice: " + function.getName());
+                }
+                decode(function);
+            }
+        }
+        code = Arrays.copyOf(code, size);
+
+        for (Map.Entry<Integer, String> call : calls.entrySet()) {
+            int operand = call.getKey();
+            String function = call.getValue();
+            Integer address = functionAddresses.get(function);
+            if (address != null) {
+                code[operand] = address;
+                continue;
+            }
+            int builtin = builtinOs ? JackOs.builtinId(function) : -1;
+            if (builtin < 0) {
+                throw new RuntimeException("Unknown function: " + function);
+            }
+            if (JackOs.ARGUMENTS[builtin] != code[operand + 1]) {
+                throw new RuntimeException(String.format("%s takes %d arguments, called with %d", function,
+                        JackOs.ARGUMENTS[builtin], code[operand + 1]));
+            }
+            code[operand - 1] = CALL_BUILTIN;
+            code[operand] = builtin;
+        }
+    }
+
+    // Sys.init if the program has one, else Main.main, else null
+    private String getEntry() {
+        String entry = null;
+        for (VmFunction function : functions) {
+            if ("Sys.init".equals(function.getName())) {
+                return function.getName();
+            } else if ("Main.main".equals(function.getName())) {
+                entry = function.getName();
+            }
+        }
+        return entry;
+    }
+
+    private void decode(VmFunction function) {
+        Map<String, Integer> labels = new HashMap<>();
+        Map<Integer, String> jumps = new HashMap<>(); // operand position -> label
+        for (VmCommand command : function.getCommands()) {
+            switch (command.getType()) {
+                case C_PUSH:
+                    decodePush(function, command.getArg1(), Integer.valueOf(command.getArg2()));
+                    break;
+                case C_POP:
+                    decodePop(function, command.getArg1(), Integer.valueOf(command.getArg2()));
+                    break;
+                case C_ARITHMETIC:
+                    int op = Arrays.asList(ARITHMETIC).indexOf(command.getText());
+                    if (op < 0) {
+                        throw new RuntimeException("Unknown command: " + command);
+                    }
+                    emit(ADD + op);
+                    break;
+                case C_LABEL:
+                    labels.put(command.getArg1(), size);
+                    break;
+                case C_GOTO:
+                case C_IF_GOTO:
+                    emit(command.getType() == CommandType.C_GOTO ? GOTO : IF_GOTO);
+                    jumps.put(size, command.getArg1());
+                    emit(0);
+                    break;
+                case C_FUNCTION_DEFINE:
+                    functionAddresses.put(command.getArg1(), size);
+                    functionsByAddress.put(size, command.getArg1());
+                    emit(FUNCTION, Integer.valueOf(command.getArg2()));
+                    break;
+                case C_FUNCTION_CALL:
+                    emit(CALL);
+                    calls.put(size, command.getArg1());
+                    emit(0, Integer.valueOf(command.getArg2()));
+                    break;
+                case C_FUNCTION_RETURN:
+                    emit(RETURN);
+                    break;
+                default:
+                    throw new RuntimeException("Unknown command: " + command);
+            }
+        }
+        for (Map.Entry<Integer, String> jump : jumps.entrySet()) {
+            Integer target = labels.get(jump.getValue());
+            if (target == null) {
+                throw new RuntimeException(String.format("Unknown label %s in %s", jump.getValue(), function.getName()));
+            }
+            int operand = jump.getKey();
+            code[operand] = target;
+            // 'label L; goto L' is how VM code halts, stop right away instead of spinning
+            if (code[operand - 1] == GOTO && target == operand - 1) {
+                code[operand - 1] = HALT;
+            }
+        }
+    }
+
+    private void decodePush(VmFunction function, String segment, int index) {
+        switch (segment) {
+            case "constant":
+                emit(PUSH_CONSTANT, index);
+                break;
+            case "local":
+                emit(PUSH_LOCAL, index);
+                break;
+            case "argument":
+                emit(PUSH_ARGUMENT, index);
+                break;
+            case "this":
+                emit(PUSH_THIS, index);
+                break;
+            case "that":
+                emit(PUSH_THAT, index);
+                break;
+            default:
+                emit(PUSH_RAM, getAddress(function, segment, index));
+        }
+    }
+
+    private void decodePop(VmFunction function, String segment, int index) {
+        switch (segment) {
+            case "local":
+                emit(POP_LOCAL, index);
+                break;
+            case "argument":
+                emit(POP_ARGUMENT, index);
+                break;
+            case "this":
+                emit(POP_THIS, index);
+                break;
+            case "that":
+                emit(POP_THAT, index);
+                break;
+            default:
+                emit(POP_RAM, getAddress(function, segment, index));
+        }
+    }
+
+    // RAM address of static, temp and pointer segment entries
+    private int getAddress(VmFunction function, String segment, int index) {
+        switch (segment) {
+            case "temp":
+                return 5 + index;
+            case "pointer":
+                return 3 + index;
+            case "static":
+                String name = function.getVmFileName() + "." + index;
+                Integer address = staticAddresses.get(name);
+                if (address == null) {
+                    address = STATIC_BASE + staticAddresses.size();
+                    if (address >= STATIC_END) {
+                        throw new RuntimeException("Too many static variables");
+                    }
+                    staticAddresses.put(name, address);
+                }
+                return address;
+            default:
+                throw new RuntimeException("Unknown segment: " + segment);
+        }
+    }
+
+    private void emit(int... words) {
+        if (size + words.length > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        for (int word : words) {
+            code[size++] = word;
+        }
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    List<VmFunction> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Returns RAM address of a static variable, or -1 if the program doesn't use it
+     *
+     * @param vmFileName: name of the .vm file without extension
+     * @param index
+     */
+    int getStaticAddress(String vmFileName, int index) {
+        return staticAddresses.getOrDefault(vmFileName + "." + index, -1);
+    }
+
+    /**
+     * Returns name of the function containing the given code address
+     */
+    String getFunctionAt(int pc) {
+        Map.Entry<Integer, String> function = functionsByAddress.floorEntry(pc);
+        return function == null ? "(no function)" : function.getValue();
+    }
+}
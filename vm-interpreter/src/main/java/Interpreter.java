@@ -0,0 +1,284 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Runs .vm programs directly, without translating and assembling them first. The program is decoded once into
+ * bytecode, then executed by a switch dispatch loop on a short[] RAM laid out like the Hack RAM: SP, LCL, ARG, THIS
+ * and THAT in RAM[0..4], temp in RAM[5..12], statics from RAM[16] and the stack from RAM[256].
+ * <p>
+ * Usage: Interpreter &lt;file.vm or directory&gt; [--builtin-os] [--max-steps N] [--dump-ram file]
+ */
+public class Interpreter {
+    static final int RAM_SIZE = 32768;
+    static final int STACK_BASE = 256;
+
+    private final Bytecode bytecode;
+    private final short[] ram = new short[RAM_SIZE];
+    private final JackOs os;
+    private final int[] returnAddresses = new int[RAM_SIZE];
+    private long steps = 0;
+
+    Interpreter(Bytecode bytecode, PrintStream out, Reader in) {
+        this.bytecode = bytecode;
+        this.os = new JackOs(ram, out, in);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String inputPath = null;
+        boolean builtinOs = false;
+        long maxSteps = Long.MAX_VALUE;
+        File ramFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--builtin-os")) {
+                builtinOs = true;
+            } else if (args[i].equals("--max-steps")) {
+                maxSteps = Long.valueOf(args[++i]);
+            } else if (args[i].equals("--dump-ram")) {
+                ramFile = new File(args[++i]);
+            } else {
+                inputPath = args[i];
+            }
+        }
+
+        Bytecode bytecode = Bytecode.decode(load(new File(inputPath)), builtinOs);
+        Interpreter interpreter = new Interpreter(bytecode, System.out,
+                new InputStreamReader(System.in));
+        long start = System.nanoTime();
+        boolean halted = interpreter.run(maxSteps);
+        long time = System.nanoTime() - start;
+        System.out.flush();
+        if (!halted) {
+            System.err.println(String.format("Stopped after %d VM commands", maxSteps));
+        }
+        System.err.println(String.format("Executed %d VM commands in %d ms (%.1f million/s)", interpreter.getSteps(),
+                time / 1_000_000, interpreter.getSteps() * 1000.0 / Math.max(time, 1)));
+        if (ramFile != null) {
+            interpreter.dumpRam(ramFile);
+            System.err.println("Successfully wrote to: " + ramFile);
+        }
+    }
+
+    /**
+     * Loads the functions of a .vm file, or of all .vm files in a directory
+     *
+     * @param input
+     * @return
+     */
+    static List<VmFunction> load(File input) {
+        List<File> vmFiles = new ArrayList<>();
+        if (!input.isDirectory()) {
+            vmFiles.add(input);
+        } else {
+            vmFiles = Arrays.stream(input.listFiles()).filter(file -> file.toString().endsWith(".vm")).sorted()
+                    .collect(Collectors.toList());
+        }
+        List<VmFunction> functions = new ArrayList<>();
+        for (File file : vmFiles) {
+            functions.addAll(VmFunction.load(file));
+        }
+        return functions;
+    }
+
+    /**
+     * Runs the program until it halts, returns from its entry function or executed maxSteps commands
+     *
+     * @param maxSteps
+     * @return true if the program halted, false if it was stopped after maxSteps
+     */
+    boolean run(long maxSteps) {
+        final short[] ram = this.ram;
+        final int[] code = bytecode.getCode();
+        final int[] returnAddresses = this.returnAddresses;
+        int pc = 0;
+        int sp = STACK_BASE;
+        int lcl = STACK_BASE;
+        int arg = STACK_BASE;
+        int depth = 0;
+        long steps = 0;
+        int a;
+        try {
+            while (steps < maxSteps) {
+                steps++;
+                switch (code[pc]) {
+                    case Bytecode.PUSH_CONSTANT:
+                        ram[sp++] = (short) code[pc + 1];
+                        pc += 2;
+                        break;
+                    case Bytecode.PUSH_LOCAL:
+                        ram[sp++] = ram[lcl + code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.PUSH_ARGUMENT:
+                        ram[sp++] = ram[arg + code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.PUSH_THIS:
+                        ram[sp++] = ram[ram[3] + code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.PUSH_THAT:
+                        ram[sp++] = ram[ram[4] + code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.PUSH_RAM:
+                        ram[sp++] = ram[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.POP_LOCAL:
+                        ram[lcl + code[pc + 1]] = ram[--sp];
+                        pc += 2;
+                        break;
+                    case Bytecode.POP_ARGUMENT:
+                        ram[arg + code[pc + 1]] = ram[--sp];
+                        pc += 2;
+                        break;
+                    case Bytecode.POP_THIS:
+                        ram[ram[3] + code[pc + 1]] = ram[--sp];
+                        pc += 2;
+                        break;
+                    case Bytecode.POP_THAT:
+                        ram[ram[4] + code[pc + 1]] = ram[--sp];
+                        pc += 2;
+                        break;
+                    case Bytecode.POP_RAM:
+                        ram[code[pc + 1]] = ram[--sp];
+                        pc += 2;
+                        break;
+                    case Bytecode.ADD:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+                        pc++;
+                        break;
+                    case Bytecode.SUB:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+                        pc++;
+                        break;
+                    case Bytecode.NEG:
+                        ram[sp - 1] = (short) -ram[sp - 1];
+                        pc++;
+                        break;
+                    case Bytecode.EQ:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] == ram[sp] ? -1 : 0);
+                        pc++;
+                        break;
+                    case Bytecode.GT:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] > ram[sp] ? -1 : 0);
+                        pc++;
+                        break;
+                    case Bytecode.LT:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] < ram[sp] ? -1 : 0);
+                        pc++;
+                        break;
+                    case Bytecode.AND:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] & ram[sp]);
+                        pc++;
+                        break;
+                    case Bytecode.OR:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] | ram[sp]);
+                        pc++;
+                        break;
+                    case Bytecode.NOT:
+                        ram[sp - 1] = (short) ~ram[sp - 1];
+                        pc++;
+                        break;
+                    case Bytecode.GOTO:
+                        pc = code[pc + 1];
+                        break;
+                    case Bytecode.IF_GOTO:
+                        pc = ram[--sp] != 0 ? code[pc + 1] : pc + 2;
+                        break;
+                    case Bytecode.CALL:
+                        returnAddresses[depth++] = pc + 3;
+                        ram[sp] = (short) (pc + 3);
+                        ram[sp + 1] = (short) lcl;
+                        ram[sp + 2] = (short) arg;
+                        ram[sp + 3] = ram[3];
+                        ram[sp + 4] = ram[4];
+                        arg = sp - code[pc + 2];
+                        sp += 5;
+                        lcl = sp;
+                        pc = code[pc + 1];
+                        break;
+                    case Bytecode.CALL_BUILTIN:
+                        a = code[pc + 2];
+                        ram[0] = (short) sp;
+                        ram[1] = (short) lcl;
+                        ram[2] = (short) arg;
+                        a = os.call(code[pc + 1], sp - a);
+                        sp -= code[pc + 2];
+                        ram[sp++] = (short) a;
+                        pc += 3;
+                        break;
+                    case Bytecode.FUNCTION:
+                        for (a = code[pc + 1]; a > 0; a--) {
+                            ram[sp++] = 0;
+                        }
+                        pc += 2;
+                        break;
+                    case Bytecode.RETURN:
+                        a = lcl;
+                        ram[arg] = ram[sp - 1];
+                        sp = arg + 1;
+                        ram[4] = ram[a - 1];
+                        ram[3] = ram[a - 2];
+                        arg = ram[a - 3];
+                        lcl = ram[a - 4];
+                        pc = returnAddresses[--depth];
+                        break;
+                    case Bytecode.HALT:
+                        return true;
+                    default:
+                        throw new IllegalStateException("Invalid opcode " + code[pc]);
+                }
+            }
+            return false;
+        } catch (JackOs.Halt halt) {
+            return true;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new RuntimeException(String.format("Invalid RAM access in %s: %s", bytecode.getFunctionAt(pc),
+                    e.getMessage()), e);
+        } finally {
+            ram[0] = (short) sp;
+            ram[1] = (short) lcl;
+            ram[2] = (short) arg;
+            this.steps += steps;
+        }
+    }
+
+    short[] getRam() {
+        return ram;
+    }
+
+    /**
+     * Returns number of VM commands executed so far
+     */
+    long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Writes all non-zero RAM words as "address value" lines
+     *
+     * @param file
+     */
+    void dumpRam(File file) {
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            for (int address = 0; address < RAM_SIZE; address++) {
+                if (ram[address] != 0) {
+                    bufferedWriter.write(String.format("%d %d\n", address, ram[address]));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Java implementation of the Jack OS classes working directly on the RAM of the program. Objects created here (arrays,
+ * strings) live in the heap like those created by VM code, so programs can mix both freely.
+ * <p>
+ * Output writes text to a stream instead of drawing characters on the screen, Keyboard reads from a reader. Memory keeps
+ * its free list in Java, every block stores its size (including the header word) right before the returned address.
+ */
+public class JackOs {
+    // builtin functions with their number of arguments, the index is the builtin id used by the interpreter
+    static final String[] FUNCTIONS = {
+            "Math.init", "Math.abs", "Math.multiply", "Math.divide", "Math.min", "Math.max", "Math.sqrt",
+            "Memory.init", "Memory.peek", "Memory.poke", "Memory.alloc", "Memory.deAlloc",
+            "Array.new", "Array.dispose",
+            "String.new", "String.dispose", "String.length", "String.charAt", "String.setCharAt", "String.appendChar",
+            "String.eraseLastChar", "String.intValue", "String.setInt", "String.backSpace", "String.doubleQuote",
+            "String.newLine",
+            "Output.init", "Output.moveCursor", "Output.printChar", "Output.printString", "Output.printInt",
+            "Output.println", "Output.backSpace",
+            "Screen.init", "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine",
+            "Screen.drawRectangle", "Screen.drawCircle",
+            "Keyboard.init", "Keyboard.keyPressed", "Keyboard.readChar", "Keyboard.readLine", "Keyboard.readInt",
+            "Sys.halt", "Sys.error", "Sys.wait"};
+    static final int[] ARGUMENTS = {
+            0, 1, 2, 2, 2, 2, 1,
+            0, 1, 2, 1, 1,
+            1, 1,
+            1, 1, 1, 2, 3, 2,
+            1, 1, 2, 0, 0,
+            0,
+            0, 2, 1, 1, 1,
+            0, 0,
+            0, 0, 1, 2, 4,
+            4, 3,
+            0, 0, 0, 1, 1,
+            0, 1, 1};
+
+    static final int HEAP_BASE = 2048;
+    static final int HEAP_END = 16384;
+    static final int SCREEN = 16384;
+    static final int KEYBOARD = 24576;
+    static final int NEW_LINE = 128;
+    static final int BACKSPACE = 129;
+
+    private final short[] ram;
+    private final PrintStream out;
+    private final Reader in;
+    private final TreeMap<Integer, Integer> freeBlocks = new TreeMap<>(); // address -> size
+    private boolean color = true;
+
+    public JackOs(short[] ram, PrintStream out, Reader in) {
+        this.ram = ram;
+        this.out = out;
+        this.in = in;
+        freeBlocks.put(HEAP_BASE, HEAP_END - HEAP_BASE);
+    }
+
+    /**
+     * Returns id of the builtin function, -1 if there is no builtin with that name
+     */
+    static int builtinId(String function) {
+        for (int i = 0; i < FUNCTIONS.length; i++) {
+            if (FUNCTIONS[i].equals(function)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns name of the Java method implementing a builtin e.g. mathMultiply for Math.multiply
+     */
+    static String methodName(String function) {
+        String[] parts = function.split("\\.");
+        return Character.toLowerCase(parts[0].charAt(0)) + parts[0].substring(1)
+                + Character.toUpperCase(parts[1].charAt(0)) + parts[1].substring(1);
+    }
+
+    /**
+     * Calls a builtin with its arguments taken from RAM
+     *
+     * @param id:      builtin id
+     * @param argBase: RAM address of the first argument
+     * @return value returned by the function, 0 for void functions
+     */
+    int call(int id, int argBase) {
+        short[] ram = this.ram;
+        switch (id) {
+            case 0:
+                return mathInit();
+            case 1:
+                return mathAbs(ram[argBase]);
+            case 2:
+                return mathMultiply(ram[argBase], ram[argBase + 1]);
+            case 3:
+                return mathDivide(ram[argBase], ram[argBase + 1]);
+            case 4:
+                return mathMin(ram[argBase], ram[argBase + 1]);
+            case 5:
+                return mathMax(ram[argBase], ram[argBase + 1]);
+            case 6:
+                return mathSqrt(ram[argBase]);
+            case 7:
+                return memoryInit();
+            case 8:
+                return memoryPeek(ram[argBase]);
+            case 9:
+                return memoryPoke(ram[argBase], ram[argBase + 1]);
+            case 10:
+                return memoryAlloc(ram[argBase]);
+            case 11:
+                return memoryDeAlloc(ram[argBase]);
+            case 12:
+                return arrayNew(ram[argBase]);
+            case 13:
+                return arrayDispose(ram[argBase]);
+            case 14:
+                return stringNew(ram[argBase]);
+            case 15:
+                return stringDispose(ram[argBase]);
+            case 16:
+                return stringLength(ram[argBase]);
+            case 17:
+                return stringCharAt(ram[argBase], ram[argBase + 1]);
+            case 18:
+                return stringSetCharAt(ram[argBase], ram[argBase + 1], ram[argBase + 2]);
+            case 19:
+                return stringAppendChar(ram[argBase], ram[argBase + 1]);
+            case 20:
+                return stringEraseLastChar(ram[argBase]);
+            case 21:
+                return stringIntValue(ram[argBase]);
+            case 22:
+                return stringSetInt(ram[argBase], ram[argBase + 1]);
+            case 23:
+                return stringBackSpace();
+            case 24:
+                return stringDoubleQuote();
+            case 25:
+                return stringNewLine();
+            case 26:
+                return outputInit();
+            case 27:
+                return outputMoveCursor(ram[argBase], ram[argBase + 1]);
+            case 28:
+                return outputPrintChar(ram[argBase]);
+            case 29:
+                return outputPrintString(ram[argBase]);
+            case 30:
+                return outputPrintInt(ram[argBase]);
+            case 31:
+                return outputPrintln();
+            case 32:
+                return outputBackSpace();
+            case 33:
+                return screenInit();
+            case 34:
+                return screenClearScreen();
+            case 35:
+                return screenSetColor(ram[argBase]);
+            case 36:
+                return screenDrawPixel(ram[argBase], ram[argBase + 1]);
+            case 37:
+                return screenDrawLine(ram[argBase], ram[argBase + 1], ram[argBase + 2], ram[argBase + 3]);
+            case 38:
+                return screenDrawRectangle(ram[argBase], ram[argBase + 1], ram[argBase + 2], ram[argBase + 3]);
+            case 39:
+                return screenDrawCircle(ram[argBase], ram[argBase + 1], ram[argBase + 2]);
+            case 40:
+                return keyboardInit();
+            case 41:
+                return keyboardKeyPressed();
+            case 42:
+                return keyboardReadChar();
+            case 43:
+                return keyboardReadLine(ram[argBase]);
+            case 44:
+                return keyboardReadInt(ram[argBase]);
+            case 45:
+                return sysHalt();
+            case 46:
+                return sysError(ram[argBase]);
+            case 47:
+                return sysWait(ram[argBase]);
+            default:
+                throw new IllegalArgumentException("Unknown builtin " + id);
+        }
+    }
+
+    // Math
+
+    public int mathInit() {
+        return 0;
+    }
+
+    public int mathAbs(int x) {
+        return (short) Math.abs(x);
+    }
+
+    public int mathMultiply(int x, int y) {
+        return (short) (x * y);
+    }
+
+    public int mathDivide(int x, int y) {
+        if (y == 0) {
+            return sysError(3);
+        }
+        return (short) (x / y);
+    }
+
+    public int mathMin(int x, int y) {
+        return Math.min(x, y);
+    }
+
+    public int mathMax(int x, int y) {
+        return Math.max(x, y);
+    }
+
+    public int mathSqrt(int x) {
+        if (x < 0) {
+            return sysError(4);
+        }
+        return (int) Math.sqrt(x);
+    }
+
+    // Memory
+
+    public int memoryInit() {
+        return 0;
+    }
+
+    public int memoryPeek(int address) {
+        return ram[address & 0x7FFF];
+    }
+
+    public int memoryPoke(int address, int value) {
+        ram[address & 0x7FFF] = (short) value;
+        return 0;
+    }
+
+    public int memoryAlloc(int size) {
+        if (size <= 0) {
+            return sysError(5);
+        }
+        int blockSize = size + 1;
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()) {
+            if (block.getValue() >= blockSize) {
+                int address = block.getKey();
+                freeBlocks.remove(address);
+                if (block.getValue() > blockSize) {
+                    freeBlocks.put(address + blockSize, block.getValue() - blockSize);
+                }
+                ram[address] = (short) blockSize;
+                return address + 1;
+            }
+        }
+        return sysError(6);
+    }
+
+    public int memoryDeAlloc(int object) {
+        int address = object - 1;
+        int size = ram[address];
+        Map.Entry<Integer, Integer> next = freeBlocks.higherEntry(address);
+        if (next != null && next.getKey() == address + size) {
+            freeBlocks.remove(next.getKey());
+            size += next.getValue();
+        }
+        Map.Entry<Integer, Integer> previous = freeBlocks.lowerEntry(address);
+        if (previous != null && previous.getKey() + previous.getValue() == address) {
+            address = previous.getKey();
+            size += previous.getValue();
+        }
+        freeBlocks.put(address, size);
+        return 0;
+    }
+
+    // Array
+
+    public int arrayNew(int size) {
+        if (size <= 0) {
+            return sysError(2);
+        }
+        return memoryAlloc(size);
+    }
+
+    public int arrayDispose(int array) {
+        return memoryDeAlloc(array);
+    }
+
+    // String: maximum length, length, characters
+
+    public int stringNew(int maxLength) {
+        if (maxLength < 0) {
+            return sysError(14);
+        }
+        int string = memoryAlloc(maxLength + 2);
+        ram[string] = (short) maxLength;
+        ram[string + 1] = 0;
+        return string;
+    }
+
+    public int stringDispose(int string) {
+        return memoryDeAlloc(string);
+    }
+
+    public int stringLength(int string) {
+        return ram[string + 1];
+    }
+
+    public int stringCharAt(int string, int j) {
+        if (j < 0 || j >= ram[string + 1]) {
+            return sysError(15);
+        }
+        return ram[string + 2 + j];
+    }
+
+    public int stringSetCharAt(int string, int j, int c) {
+        if (j < 0 || j >= ram[string + 1]) {
+            return sysError(16);
+        }
+        ram[string + 2 + j] = (short) c;
+        return 0;
+    }
+
+    public int stringAppendChar(int string, int c) {
+        int length = ram[string + 1];
+        if (length >= ram[string]) {
+            return sysError(17);
+        }
+        ram[string + 2 + length] = (short) c;
+        ram[string + 1] = (short) (length + 1);
+        return string;
+    }
+
+    public int stringEraseLastChar(int string) {
+        if (ram[string + 1] == 0) {
+            return sysError(18);
+        }
+        ram[string + 1]--;
+        return 0;
+    }
+
+    public int stringIntValue(int string) {
+        int length = ram[string + 1];
+        int i = 0;
+        boolean negative = length > 0 && ram[string + 2] == '-';
+        if (negative) {
+            i++;
+        }
+        int value = 0;
+        while (i < length && ram[string + 2 + i] >= '0' && ram[string + 2 + i] <= '9') {
+            value = (short) (value * 10 + ram[string + 2 + i] - '0');
+            i++;
+        }
+        return negative ? (short) -value : value;
+    }
+
+    public int stringSetInt(int string, int number) {
+        String digits = Integer.toString(number);
+        if (digits.length() > ram[string]) {
+            return sysError(19);
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            ram[string + 2 + i] = (short) digits.charAt(i);
+        }
+        ram[string + 1] = (short) digits.length();
+        return 0;
+    }
+
+    public int stringBackSpace() {
+        return BACKSPACE;
+    }
+
+    public int stringDoubleQuote() {
+        return '"';
+    }
+
+    public int stringNewLine() {
+        return NEW_LINE;
+    }
+
+    // Output
+
+    public int outputInit() {
+        return 0;
+    }
+
+    public int outputMoveCursor(int i, int j) {
+        return 0;
+    }
+
+    public int outputPrintChar(int c) {
+        if (c == NEW_LINE) {
+            out.print('\n');
+        } else if (c == BACKSPACE) {
+            out.print('\b');
+        } else {
+            out.print((char) c);
+        }
+        return 0;
+    }
+
+    public int outputPrintString(int string) {
+        int length = ram[string + 1];
+        for (int i = 0; i < length; i++) {
+            outputPrintChar(ram[string + 2 + i]);
+        }
+        return 0;
+    }
+
+    public int outputPrintInt(int i) {
+        out.print(i);
+        return 0;
+    }
+
+    public int outputPrintln() {
+        return outputPrintChar(NEW_LINE);
+    }
+
+    public int outputBackSpace() {
+        return outputPrintChar(BACKSPACE);
+    }
+
+    // Screen: 256 rows of 512 pixels, 32 words per row
+
+    public int screenInit() {
+        color = true;
+        return 0;
+    }
+
+    public int screenClearScreen() {
+        for (int address = SCREEN; address < KEYBOARD; address++) {
+            ram[address] = 0;
+        }
+        return 0;
+    }
+
+    public int screenSetColor(int b) {
+        color = b != 0;
+        return 0;
+    }
+
+    public int screenDrawPixel(int x, int y) {
+        if (x < 0 || x > 511 || y < 0 || y > 255) {
+            return sysError(7);
+        }
+        int address = SCREEN + y * 32 + x / 16;
+        int mask = 1 << (x & 15);
+        ram[address] = (short) (color ? ram[address] | mask : ram[address] & ~mask);
+        return 0;
+    }
+
+    public int screenDrawLine(int x1, int y1, int x2, int y2) {
+        if (x1 < 0 || x1 > 511 || y1 < 0 || y1 > 255 || x2 < 0 || x2 > 511 || y2 < 0 || y2 > 255) {
+            return sysError(8);
+        }
+        int dx = Math.abs(x2 - x1);
+        int dy = -Math.abs(y2 - y1);
+        int sx = x1 < x2 ? 1 : -1;
+        int sy = y1 < y2 ? 1 : -1;
+        int error = dx + dy;
+        while (true) {
+            screenDrawPixel(x1, y1);
+            if (x1 == x2 && y1 == y2) {
+                return 0;
+            }
+            if (2 * error >= dy) {
+                error += dy;
+                x1 += sx;
+            }
+            if (2 * error <= dx) {
+                error += dx;
+                y1 += sy;
+            }
+        }
+    }
+
+    public int screenDrawRectangle(int x1, int y1, int x2, int y2) {
+        if (x1 > x2 || y1 > y2 || x1 < 0 || x2 > 511 || y1 < 0 || y2 > 255) {
+            return sysError(9);
+        }
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                screenDrawPixel(x, y);
+            }
+        }
+        return 0;
+    }
+
+    public int screenDrawCircle(int x, int y, int r) {
+        if (x < 0 || x > 511 || y < 0 || y > 255) {
+            return sysError(12);
+        }
+        if (r < 0 || r > 181 || x - r < 0 || x + r > 511 || y - r < 0 || y + r > 255) {
+            return sysError(13);
+        }
+        for (int dy = -r; dy <= r; dy++) {
+            int dx = (int) Math.sqrt(r * r - dy * dy);
+            for (int px = x - dx; px <= x + dx; px++) {
+                screenDrawPixel(px, y + dy);
+            }
+        }
+        return 0;
+    }
+
+    // Keyboard
+
+    public int keyboardInit() {
+        return 0;
+    }
+
+    public int keyboardKeyPressed() {
+        return ram[KEYBOARD];
+    }
+
+    public int keyboardReadChar() {
+        try {
+            int c = in.read();
+            int key = c < 0 || c == '\n' ? NEW_LINE : c;
+            if (key != NEW_LINE) {
+                outputPrintChar(key);
+            }
+            return key;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int keyboardReadLine(int message) {
+        outputPrintString(message);
+        StringBuilder line = new StringBuilder();
+        for (int c = keyboardReadChar(); c != NEW_LINE; c = keyboardReadChar()) {
+            if (c == BACKSPACE) {
+                if (line.length() > 0) {
+                    line.setLength(line.length() - 1);
+                }
+            } else {
+                line.append((char) c);
+            }
+        }
+        outputPrintln();
+        int string = stringNew(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            stringAppendChar(string, line.charAt(i));
+        }
+        return string;
+    }
+
+    public int keyboardReadInt(int message) {
+        int line = keyboardReadLine(message);
+        int value = stringIntValue(line);
+        stringDispose(line);
+        return value;
+    }
+
+    // Sys
+
+    public int sysHalt() {
+        throw new Halt();
+    }
+
+    public int sysError(int errorCode) {
+        out.print("ERR" + errorCode);
+        out.flush();
+        throw new Halt();
+    }
+
+    public int sysWait(int duration) {
+        return 0;
+    }
+
+    /**
+     * Thrown to stop the program, by Sys.halt and Sys.error
+     */
+    public static class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Halt() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+class CodeWriter {
+    private final InstructionCounter instructionCounter;
+    private final BufferedWriter bufferedWriter;
+    private String vmFileName;
+    private boolean callStubUsed = false;
+    private boolean returnStubUsed = false;
+    private CounterTable counterTable;
+    private String function;
+    private int callSite;
+
+    CodeWriter(File outputFile, String vmFileName) throws IOException {
+        this(new FileWriter(outputFile), vmFileName);
+    }
+
+    CodeWriter(Writer writer, String vmFileName) {
+        instructionCounter = new InstructionCounter(writer);
+        bufferedWriter = new BufferedWriter(instructionCounter);
+        this.vmFileName = vmFileName;
+    }
+
+    /**
+     * Returns number of Hack instructions written so far
+     */
+    int getInstructionCount() throws IOException {
+        bufferedWriter.flush();
+        return instructionCounter.getCount();
+    }
+
+    void close() throws IOException {
+        bufferedWriter.close();
+    }
+
+    void writeComment(String comment) throws IOException {
+        bufferedWriter.write("// " + comment + "\n");
+        bufferedWriter.flush();
+    }
+
+    public void setVmFileName(String vmFileName) {
+        this.vmFileName = vmFileName;
+    }
+
+    /**
+     * Enables instrumentation: every function entry and call site increments its own counter in RAM
+     *
+     * @param counterTable: RAM addresses of the counters
+     */
+    public void setCounterTable(CounterTable counterTable) {
+        this.counterTable = counterTable;
+    }
+
+    // counts calls of the function, also resets call site numbering
+    private void writeFunctionCounter(String functionName) throws IOException {
+        function = functionName;
+        callSite = 0;
+        if (counterTable != null) {
+            writeCounterIncrement(counterTable.addFunction(functionName));
+        }
+    }
+
+    // counts executions of the next call site of the current function, the bootstrap call is not counted
+    private void writeCallSiteCounter(String callee) throws IOException {
+        if (counterTable != null && function != null) {
+            writeCounterIncrement(counterTable.addCallSite(function, callSite, callee));
+        }
+        callSite++;
+    }
+
+    private void writeCounterIncrement(int address) throws IOException {
+        bufferedWriter.write("@" + address + "\n");
+        bufferedWriter.write("M=M+1\n");
+    }
+
+    /**
+     * Bootstrap code which will be in the beginning of the asm file, in an instrumented build the stack starts after
+     * the counters
+     */
+    void writeBootStrap() throws IOException {
+        bufferedWriter.write("@" + (counterTable == null ? 256 : counterTable.getStackBase()) + "\n");
+        bufferedWriter.write("D=A\n");
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("M=D\n");
+
+        writeCallFunction("Sys.init", "0");
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Writes assembly language for returning function, either inline or as a jump to the shared return stub
+     *
+     * @param inline: false for cold functions, which share one copy of the return sequence
+     */
+    void writeFunctionReturn(boolean inline) throws IOException {
+        if (inline) {
+            writeFunctionReturn();
+        } else {
+            returnStubUsed = true;
+            bufferedWriter.write("@RETURN_STUB\n");
+            bufferedWriter.write("0;JMP\n");
+            bufferedWriter.flush();
+        }
+    }
+
+    /**
+     * Writes assembly language for returning function
+     */
+    void writeFunctionReturn() throws IOException {
+        // FRAME = LCL
+        //writeComment("FRAME = LCL");
+        bufferedWriter.write("@LCL\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@FRAME\n");
+        bufferedWriter.write("M=D\n");
+
+        // RET = *(FRAME - 5)
+        //writeComment("RET = *(FRAME - 5)");
+        writeFromTemp("RET", 5);
+
+        //writeComment("*ARG = pop()");
+        writePushPop(CommandType.C_POP, "argument", "0");
+
+        // SP = ARG + 1
+        //writeComment("SP = ARG + 1");
+        bufferedWriter.write("@ARG\n");
+        bufferedWriter.write("D=M+1\n");
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("M=D\n");
+
+        //writeComment("THAT = *(FRAME - 1)");
+        writeFromTemp("THAT", 1);
+        //writeComment("THIS = *(FRAME - 2)");
+        writeFromTemp("THIS", 2);
+        //writeComment("ARG = *(FRAME - 3)");
+        writeFromTemp("ARG", 3);
+        //writeComment("LCL = *(FRAME - 4)");
+        writeFromTemp("LCL", 4);
+
+
+        //writeComment("goto RET");
+        bufferedWriter.write("@RET\n");
+        bufferedWriter.write("A=M\n");
+        bufferedWriter.write("0;JMP\n");
+        bufferedWriter.flush();
+    }
+
+    // For example: RET = *(FRAME - 5), address = RET, offset = 5
+    void writeFromTemp(String address, int offset) throws IOException {
+        bufferedWriter.write("@FRAME\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@" + offset + "\n");
+        bufferedWriter.write("A=D-A\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@" + address + "\n");
+        bufferedWriter.write("M=D\n");
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Writes assembly language for defining  a function e.g. function f k
+     *
+     * @param arg1: function name
+     * @param arg2: number of local variables needed
+     */
+    void writeDefineFunction(String arg1, String arg2) throws IOException {
+        //writeComment(String.format("function %s %s", arg1, arg2));
+        bufferedWriter.write(String.format("(%s)\n", arg1));
+        writeFunctionCounter(arg1);
+        for (int i = 0; i < Integer.valueOf(arg2); i++) {
+            writePushPop(CommandType.C_PUSH, "constant", "0");
+        }
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Writes assembly language for defining a function, with the local variables initialized either by unrolled pushes
+     * or by a loop
+     *
+     * @param arg1:     function name
+     * @param arg2:     number of local variables needed
+     * @param unrolled: false for cold functions, which initialize two or more locals in a loop to save ROM
+     */
+    void writeDefineFunction(String arg1, String arg2, boolean unrolled) throws IOException {
+        int nLocals = Integer.valueOf(arg2);
+        if (unrolled || nLocals < 2) {
+            writeDefineFunction(arg1, arg2);
+            return;
+        }
+        String loop = String.format("%s_init_locals", arg1);
+        bufferedWriter.write(String.format("(%s)\n", arg1));
+        writeFunctionCounter(arg1);
+        bufferedWriter.write(String.format("@%d\n", nLocals));
+        bufferedWriter.write("D=A\n");
+        bufferedWriter.write(String.format("(%s)\n", loop));
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("M=M+1\n");
+        bufferedWriter.write("A=M-1\n");
+        bufferedWriter.write("M=0\n");
+        bufferedWriter.write("D=D-1\n");
+        bufferedWriter.write(String.format("@%s\n", loop));
+        bufferedWriter.write("D;JGT\n");
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Writes assembly language for function call e.g. call f n
+     *
+     * @param arg1: function name
+     * @param arg2: number of arguments
+     * @throws IOException
+     */
+    void writeCallFunction(String arg1, String arg2) throws IOException {
+        //writeComment(String.format("call %s %s", arg1, arg2));
+        writeCallSiteCounter(arg1);
+        String returnAddress = String.format("%s_return_address_%s", vmFileName, VirtualMachine.jumpCount++);
+        pushToStack(returnAddress, true);
+        pushToStack("LCL", false);
+        pushToStack("ARG", false);
+        pushToStack("THIS", false);
+        pushToStack("THAT", false);
+        // ARG = SP - n - 5
+        bufferedWriter.write(String.format("@SP\n"));
+        bufferedWriter.write(String.format("D=M\n"));
+        bufferedWriter.write(String.format("@%s\n", arg2));
+        bufferedWriter.write(String.format("D=D-A\n"));
+        bufferedWriter.write(String.format("@5\n", arg1));
+        bufferedWriter.write(String.format("D=D-A\n"));
+        bufferedWriter.write(String.format("@ARG\n"));
+        bufferedWriter.write(String.format("M=D\n"));
+        //LCL = SP
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@LCL\n");
+        bufferedWriter.write("M=D\n");
+        writeProgramFlow(CommandType.C_GOTO, arg1);
+        bufferedWriter.write(String.format("(%s)\n", returnAddress));
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Writes assembly language for function call, either inline or as a compact call through the shared call stub.
+     * The compact form passes the callee address in R13, the number of arguments in R14 and the return address in D.
+     *
+     * @param arg1:   function name
+     * @param arg2:   number of arguments
+     * @param inline: false for cold call sites
+     * @throws IOException
+     */
+    void writeCallFunction(String arg1, String arg2, boolean inline) throws IOException {
+        if (inline) {
+            writeCallFunction(arg1, arg2);
+            return;
+        }
+        callStubUsed = true;
+        writeCallSiteCounter(arg1);
+        String returnAddress = String.format("%s_return_address_%s", vmFileName, VirtualMachine.jumpCount++);
+        bufferedWriter.write(String.format("@%s\n", arg1));
+        bufferedWriter.write("D=A\n");
+        bufferedWriter.write("@R13\n");
+        bufferedWriter.write("M=D\n");
+        if (arg2.equals("0")) {
+            bufferedWriter.write("@R14\n");
+            bufferedWriter.write("M=0\n");
+        } else {
+            bufferedWriter.write(String.format("@%s\n", arg2));
+            bufferedWriter.write("D=A\n");
+            bufferedWriter.write("@R14\n");
+            bufferedWriter.write("M=D\n");
+        }
+        bufferedWriter.write(String.format("@%s\n", returnAddress));
+        bufferedWriter.write("D=A\n");
+        bufferedWriter.write("@CALL_STUB\n");
+        bufferedWriter.write("0;JMP\n");
+        bufferedWriter.write(String.format("(%s)\n", returnAddress));
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Shared call sequence used by compact call sites, see writeCallFunction
+     */
+    void writeCallStub() throws IOException {
+        bufferedWriter.write("(CALL_STUB)\n");
+        // push return address which is in D
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("A=M\n");
+        bufferedWriter.write("M=D\n");
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("M=M+1\n");
+        pushToStack("LCL", false);
+        pushToStack("ARG", false);
+        pushToStack("THIS", false);
+        pushToStack("THAT", false);
+        // ARG = SP - R14 - 5
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@R14\n");
+        bufferedWriter.write("D=D-M\n");
+        bufferedWriter.write("@5\n");
+        bufferedWriter.write("D=D-A\n");
+        bufferedWriter.write("@ARG\n");
+        bufferedWriter.write("M=D\n");
+        //LCL = SP
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("@LCL\n");
+        bufferedWriter.write("M=D\n");
+        // goto R13
+        bufferedWriter.write("@R13\n");
+        bufferedWriter.write("A=M\n");
+        bufferedWriter.write("0;JMP\n");
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Shared return sequence used by cold functions
+     */
+    void writeReturnStub() throws IOException {
+        bufferedWriter.write("(RETURN_STUB)\n");
+        writeFunctionReturn();
+    }
+
+    /**
+     * Writes the shared call and return stubs at the end of the program if any cold code jumps to them
+     */
+    void writeStubs() throws IOException {
+        if (callStubUsed) {
+            writeCallStub();
+        }
+        if (returnStubUsed) {
+            writeReturnStub();
+        }
+    }
+
+    /**
+     * Translates control flow commands to assembly language
+     *
+     * @param commandType
+     * @param arg1
+     * @throws IOException
+     */
+    void writeProgramFlow(CommandType commandType, String arg1) throws IOException {
+        if (commandType == CommandType.C_LABEL) {
+            bufferedWriter.write(String.format("(%s)\n", arg1));
+        } else if (commandType == CommandType.C_GOTO) {
+            bufferedWriter.write(String.format("@%s\n", arg1));
+            bufferedWriter.write(String.format("0;JMP\n", arg1));
+        } else {
+            bufferedWriter.write(String.format("@SP\n", arg1));
+            bufferedWriter.write(String.format("AM=M-1\n", arg1));
+            bufferedWriter.write(String.format("D=M\n", arg1));
+            bufferedWriter.write(String.format("@%s\n", arg1));
+            bufferedWriter.write(String.format("D;JNE\n", arg1));
+        }
+        bufferedWriter.flush();
+    }
+
+    void writeArithmeticCommonCode() throws IOException {
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("AM=M-1\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("A=A-1\n");
+        bufferedWriter.flush();
+    }
+
+    void writeComparisonCommonCode(String jmp) throws IOException {
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("AM=M-1\n");
+        bufferedWriter.write("D=M\n");
+        bufferedWriter.write("A=A-1\n");
+        bufferedWriter.write("D=M-D\n");
+        bufferedWriter.write("@TRUE" + VirtualMachine.jumpCount + "\n");
+        bufferedWriter.write("D;" + jmp + "\n");
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("A=M-1\n");
+        bufferedWriter.write("M=0\n");
+        bufferedWriter.write("@CONTINUE" + VirtualMachine.jumpCount + "\n");
+        bufferedWriter.write("0;JMP\n");
+        bufferedWriter.write("(TRUE" + VirtualMachine.jumpCount + ")\n");
+        bufferedWriter.write("@SP\n");
+        bufferedWriter.write("A=M-1\n");
+        bufferedWriter.write("M=-1\n");
+        bufferedWriter.write("(CONTINUE" + VirtualMachine.jumpCount + ")\n");
+        VirtualMachine.jumpCount++;
+    }
+
+    /**
+     * Translates arithmetic command to assembly language syntax
+     *
+     * @param command
+     */
+    void writeArithmeticCommand(String command) throws IOException {
+        if (command.equals("add")) {
+            writeArithmeticCommonCode();
+            bufferedWriter.write("M=D+M\n");
+        } else if (command.equals("sub")) {
+            writeArithmeticCommonCode();
+            bufferedWriter.write("M=M-D\n");
+        } else if (command.equals("and")) {
+            writeArithmeticCommonCode();
+            bufferedWriter.write("M=D&M\n");
+        } else if (command.equals("or")) {
+            writeArithmeticCommonCode();
+            bufferedWriter.write("M=D|M\n");
+        } else if (command.equals("neg")) {
+            bufferedWriter.write("@SP\n");
+            bufferedWriter.write("A=M-1\n");
+            bufferedWriter.write("M=-M\n");
+        } else if (command.equals("not")) {
+            bufferedWriter.write("@SP\n");
+            bufferedWriter.write("A=M-1\n");
+            bufferedWriter.write("M=!M\n");
+        } else if (command.equals("gt")) {
+            writeComparisonCommonCode("JGT");
+        } else if (command.equals("lt")) {
+            writeComparisonCommonCode("JLT");
+        } else if (command.equals("eq")) {
+            writeComparisonCommonCode("JEQ");
+        }
+
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Translates push or pop command to assembly language syntax
+     *
+     * @param commandType
+     * @param arg1        push or pop
+     * @param arg2        rest of the command for ex: pointer 0
+     */
+    void writePushPop(CommandType commandType, String arg1, String arg2) throws IOException {
+        if (commandType == CommandType.C_PUSH) {
+            if (arg1.equals("constant")) {
+                bufferedWriter.write("@" + Integer.valueOf(arg2) + "\n");
+                bufferedWriter.write("D=A\n");
+                bufferedWriter.write("@SP\n");
+                bufferedWriter.write("A=M\n");
+                bufferedWriter.write("M=D\n");
+                bufferedWriter.write("@SP\n");
+                bufferedWriter.write("M=M+1\n");
+            } else {
+                Map<String, String> map = new HashMap<String, String>() {{
+                    put("local", "LCL");
+                    put("argument", "ARG");
+                    put("this", "THIS");
+                    put("that", "THAT");
+                }};
+
+                if (arg1.equals("static")) {
+                    bufferedWriter.write("@" + vmFileName + arg2 + "\n");
+                    bufferedWriter.write("D=M\n");
+                } else if (arg1.equals("temp")) {
+                    bufferedWriter.write("@" + (5 + Integer.valueOf(arg2)) + "\n");
+                    bufferedWriter.write("D=M\n");
+                } else if (arg1.equals("pointer")) {
+                    if (arg2.equals("0")) {
+                        bufferedWriter.write("@THIS\n");
+                    } else {
+                        bufferedWriter.write("@THAT\n");
+                    }
+                    bufferedWriter.write("D=M\n");
+                } else {
+                    bufferedWriter.write("@" + map.get(arg1) + "\n");
+                    bufferedWriter.write("D=M\n");
+                    bufferedWriter.write("@" + Integer.valueOf(arg2) + "\n");
+                    bufferedWriter.write("A=D+A\n");
+                    bufferedWriter.write("D=M\n");
+                }
+
+                // common part
+                bufferedWriter.write("@SP\n");
+                bufferedWriter.write("A=M\n");
+                bufferedWriter.write("M=D\n");
+                bufferedWriter.write("@SP\n");
+                bufferedWriter.write("M=M+1\n");
+            }
+        }
+
+        if (commandType == CommandType.C_POP) {
+            Map<String, String> map = new HashMap<String, String>() {{
+                put("local", "LCL");
+                put("argument", "ARG");
+                put("this", "THIS");
+                put("that", "THAT");
+            }};
+
+            if (arg1.equals("static")) {
+                bufferedWriter.write("@" + vmFileName + Integer.valueOf(arg2) + "\n");
+                bufferedWriter.write("D=A\n");
+            } else if (arg1.equals("temp")) {
+                bufferedWriter.write("@" + (5 + Integer.valueOf(arg2)) + "\n");
+                bufferedWriter.write("D=A\n");
+            } else if (arg1.equals("pointer")) {
+                if (arg2.equals("0")) {
+                    bufferedWriter.write("@THIS\n");
+                } else {
+                    bufferedWriter.write("@THAT\n");
+                }
+                bufferedWriter.write("D=A\n");
+            } else {
+                bufferedWriter.write("@" + map.get(arg1) + "\n");
+                bufferedWriter.write("D=M\n");
+                bufferedWriter.write("@" + Integer.valueOf(arg2) + "\n");
+                bufferedWriter.write("D=D+A\n");
+            }
+
+            // common part
+            bufferedWriter.write("@R13\n");
+            bufferedWriter.write("M=D\n");
+            bufferedWriter.write("@SP\n");
+            bufferedWriter.write("AM=M-1\n");
+            bufferedWriter.write("D=M\n");
+            bufferedWriter.write("@R13\n");
+            bufferedWriter.write("A=M\n");
+            bufferedWriter.write("M=D\n");
+        }
+
+        bufferedWriter.flush();
+    }
+
+    void pushToStack(String value, boolean address) throws IOException {
+        bufferedWriter.write(String.format("@%s\n", value));
+        if (address) {
+            bufferedWriter.write(String.format("D=A\n", value));
+        } else {
+            bufferedWriter.write(String.format("D=M\n", value));
+        }
+        bufferedWriter.write(String.format("@SP\n", value));
+        bufferedWriter.write(String.format("A=M\n", value));
+        bufferedWriter.write(String.format("M=D\n", value));
+        bufferedWriter.write(String.format("@SP\n", value));
+        bufferedWriter.write(String.format("M=M+1\n", value));
+        bufferedWriter.flush();
+    }
+}
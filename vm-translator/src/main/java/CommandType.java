@@ -0,0 +1 @@
+enum CommandType {C_ARITHMETIC, C_PUSH, C_POP, C_LABEL, C_GOTO, C_IF_GOTO, C_FUNCTION_CALL, C_FUNCTION_RETURN, C_FUNCTION_DEFINE}
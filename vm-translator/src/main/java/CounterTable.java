@@ -0,0 +1,100 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RAM table of the counters written by an instrumented build: one counter per function, incremented on every call,
+ * and one per call site. The table takes the bottom of the stack segment, from address 256, and the bootstrap code
+ * starts the stack right after it, so statics, heap and screen are untouched and the stack is only that much smaller.
+ * The side-car map file has one line per counter:
+ * <pre>
+ * &lt;address&gt; function &lt;function&gt;
+ * &lt;address&gt; call &lt;caller&gt; &lt;site&gt; &lt;callee&gt;
+ * </pre>
+ */
+class CounterTable {
+    static final int BASE_ADDRESS = 256;
+    static final int MAX_COUNTERS = 1024; // leaves 768 words of the stack segment, which ends at 2047
+
+    private final int size;
+    private final List<String> entries = new ArrayList<>();
+
+    /**
+     * Reserves a counter for each function and for each call site in a function
+     *
+     * @param functions: in the order they are translated
+     */
+    CounterTable(List<VmFunction> functions) {
+        int size = 0;
+        boolean inFunction = false; // calls before the first function are the bootstrap's, which are not counted
+        for (VmFunction function : functions) {
+            for (VmCommand command : function.getCommands()) {
+                if (command.getType() == CommandType.C_FUNCTION_DEFINE) {
+                    inFunction = true;
+                    size++;
+                } else if (command.getType() == CommandType.C_FUNCTION_CALL && inFunction) {
+                    size++;
+                }
+            }
+        }
+        if (size > MAX_COUNTERS) {
+            throw new RuntimeException(String.format("Too many counters, %d, the stack has room for %d", size,
+                    MAX_COUNTERS));
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns the address the stack starts at, after the table
+     *
+     * @return
+     */
+    int getStackBase() {
+        return BASE_ADDRESS + size;
+    }
+
+    /**
+     * Allocates the counter of a function
+     *
+     * @param function
+     * @return RAM address of the counter
+     */
+    int addFunction(String function) {
+        return add(String.format("function %s", function));
+    }
+
+    /**
+     * Allocates the counter of a call site
+     *
+     * @param caller: function containing the call
+     * @param site:   position of the call among the calls of the caller
+     * @param callee: called function
+     * @return RAM address of the counter
+     */
+    int addCallSite(String caller, int site, String callee) {
+        return add(String.format("call %s %d %s", caller, site, callee));
+    }
+
+    private int add(String entry) {
+        if (entries.size() == size) {
+            throw new RuntimeException("More counters than reserved, " + size);
+        }
+        entries.add(entry);
+        return BASE_ADDRESS + entries.size() - 1;
+    }
+
+    /**
+     * Writes the map file
+     *
+     * @param mapFile
+     */
+    void write(File mapFile) {
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(mapFile))) {
+            for (int i = 0; i < entries.size(); i++) {
+                bufferedWriter.write(String.format("%d %s\n", BASE_ADDRESS + i, entries.get(i)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
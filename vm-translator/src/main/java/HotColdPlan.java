@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Hot/cold decisions for the translation of a program. Hot functions get an inline return sequence and unrolled local
+ * initialization, hot call sites get the inline call sequence. Cold code jumps to shared call and return stubs instead,
+ * which is slower but much smaller.
+ * <p>
+ * With a profile, the plan starts from an all cold program and makes the candidates that save the most cycles per
+ * extra ROM word hot, for as long as the program still fits in ROM.
+ */
+class HotColdPlan {
+    static final int ROM_SIZE = 32768;
+    // cycles a cold function with 2 or more locals spends on setting up its local initialization loop
+    private static final int LOCALS_LOOP_CYCLES = 2;
+
+    private final boolean uniform;
+    private final Set<String> hotFunctions = new HashSet<>();
+    private final Set<String> hotCallSites = new HashSet<>();
+    private final Map<String, Long> functionCounts = new HashMap<>();
+
+    private HotColdPlan(boolean uniform) {
+        this.uniform = uniform;
+    }
+
+    /**
+     * Plan which translates everything inline
+     */
+    static HotColdPlan uniform() {
+        return new HotColdPlan(true);
+    }
+
+    /**
+     * Creates the plan for the given functions from the execution counts of a profile
+     *
+     * @param profile
+     * @param functions: all functions of the program
+     * @param bootStrap: true if the program starts with bootstrap code
+     * @return
+     * @throws IOException
+     */
+    static HotColdPlan create(Profile profile, List<VmFunction> functions, boolean bootStrap) throws IOException {
+        HotColdPlan plan = new HotColdPlan(false);
+
+        // size of each form in instructions; the sequences are straight line code, so this is also their cycle count
+        int inlineCall = size(codeWriter -> codeWriter.writeCallFunction("f", "1", true));
+        int compactCall = size(codeWriter -> codeWriter.writeCallFunction("f", "1", false));
+        int callStub = size(CodeWriter::writeCallStub);
+        int inlineReturn = size(codeWriter -> codeWriter.writeFunctionReturn(true));
+        int compactReturn = size(codeWriter -> codeWriter.writeFunctionReturn(false));
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (VmFunction function : functions) {
+            String name = function.getName();
+            if (name == null) {
+                continue;
+            }
+            long count = profile.getFunctionCount(name);
+            plan.functionCounts.put(name, count);
+
+            String nLocals = String.valueOf(function.getNLocals());
+            int unrolledLocals = size(codeWriter -> codeWriter.writeDefineFunction(name, nLocals, true));
+            int loopedLocals = size(codeWriter -> codeWriter.writeDefineFunction(name, nLocals, false));
+            long cycles = compactReturn + (unrolledLocals != loopedLocals ? LOCALS_LOOP_CYCLES : 0);
+            candidates.add(new Candidate(name, true, count * cycles,
+                    inlineReturn - compactReturn + unrolledLocals - loopedLocals));
+
+            List<String> callees = function.getCallees();
+            for (int site = 0; site < callees.size(); site++) {
+                long siteCount = profile.getCallSiteCount(name, site, callees.get(site));
+                candidates.add(new Candidate(name + "#" + site, false,
+                        siteCount * (compactCall + callStub - inlineCall), inlineCall - compactCall));
+            }
+        }
+
+        CodeWriter coldWriter = new CodeWriter(Writer.nullWriter(), "");
+        VirtualMachine.translate(coldWriter, functions, new HotColdPlan(false), bootStrap, null);
+        int romSize = coldWriter.getInstructionCount();
+        if (romSize > ROM_SIZE) {
+            System.err.println(String.format("Warning: program needs %d instructions even with all code cold, ROM has %d",
+                    romSize, ROM_SIZE));
+        }
+
+        candidates.sort(Comparator.comparingDouble(Candidate::cyclesPerWord).reversed());
+        for (Candidate candidate : candidates) {
+            if (candidate.cycles <= 0 || romSize + candidate.size > ROM_SIZE) {
+                continue;
+            }
+            romSize += candidate.size;
+            if (candidate.function) {
+                plan.hotFunctions.add(candidate.name);
+            } else {
+                plan.hotCallSites.add(candidate.name);
+            }
+        }
+        return plan;
+    }
+
+    // number of instructions written by the given code writer calls
+    private static int size(Emitter emitter) throws IOException {
+        CodeWriter codeWriter = new CodeWriter(Writer.nullWriter(), "");
+        emitter.emit(codeWriter);
+        return codeWriter.getInstructionCount();
+    }
+
+    /**
+     * Returns true if the function should get inline return and unrolled local initialization
+     */
+    boolean isHotFunction(String function) {
+        return uniform || function == null || hotFunctions.contains(function);
+    }
+
+    /**
+     * Returns true if the call site should get the inline call sequence
+     *
+     * @param caller: function containing the call
+     * @param site:   position of the call among the calls of the caller
+     */
+    boolean isHotCallSite(String caller, int site) {
+        return uniform || caller == null || hotCallSites.contains(caller + "#" + site);
+    }
+
+    /**
+     * Orders functions for ROM placement: code outside of functions first, then the executed functions from the most
+     * to the least called so that hot code is kept together, then the functions that were never executed in their
+     * original order
+     *
+     * @param functions
+     * @return
+     */
+    List<VmFunction> layout(List<VmFunction> functions) {
+        List<VmFunction> ordered = functions.stream().filter(function -> function.getName() == null)
+                .collect(Collectors.toList());
+        functions.stream().filter(function -> function.getName() != null && getCount(function) > 0)
+                .sorted(Comparator.comparingLong(this::getCount).reversed())
+                .forEach(ordered::add);
+        functions.stream().filter(function -> function.getName() != null && getCount(function) == 0)
+                .forEach(ordered::add);
+        return ordered;
+    }
+
+    private long getCount(VmFunction function) {
+        return functionCounts.getOrDefault(function.getName(), 0L);
+    }
+
+    private interface Emitter {
+        void emit(CodeWriter codeWriter) throws IOException;
+    }
+
+    /**
+     * A function or call site which can be made hot
+     */
+    private static class Candidate {
+        final String name;
+        final boolean function;
+        final long cycles; // cycles saved over the whole profiled run if hot
+        final int size; // extra ROM words if hot
+
+        Candidate(String name, boolean function, long cycles, int size) {
+            this.name = name;
+            this.function = function;
+            this.cycles = cycles;
+            this.size = size;
+        }
+
+        double cyclesPerWord() {
+            return (double) cycles / Math.max(size, 1);
+        }
+    }
+}
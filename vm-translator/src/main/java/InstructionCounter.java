@@ -0,0 +1,59 @@
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer which passes assembly language through and counts the instructions that end up in ROM, i.e. every line that
+ * is neither a label nor a comment
+ */
+class InstructionCounter extends FilterWriter {
+    private int count = 0;
+    private boolean lineStart = true;
+    private boolean instruction = false;
+
+    InstructionCounter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        count((char) c);
+        super.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            count(cbuf[i]);
+        }
+        super.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            count(str.charAt(i));
+        }
+        super.write(str, off, len);
+    }
+
+    private void count(char c) {
+        if (c == '\n') {
+            if (instruction) {
+                count++;
+            }
+            lineStart = true;
+            instruction = false;
+        } else if (lineStart && !Character.isWhitespace(c)) {
+            instruction = c != '(' && c != '/';
+            lineStart = false;
+        }
+    }
+
+    /**
+     * Returns number of instructions written so far
+     */
+    int getCount() {
+        return count;
+    }
+}
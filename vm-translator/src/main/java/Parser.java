@@ -0,0 +1,163 @@
+import java.io.*;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class Parser {
+
+    private final static String WHITE_SPACE = "[\\s]*"; // white space characters
+    private final static String EMPTY_LINE = "^[\\s]*$";
+    private final static String SINGLE_LINE_COMMENT = "(//.*$)|(/\\*.*\\*/)";
+    private final static String MULTI_LINE_COMMENT_START = "/\\*.*$";
+    private final static String MULTI_LINE_COMMENT_END = "^.*\\*/";
+    private final Queue<String> nextCommand = new LinkedList();
+    private BufferedReader bufferedReader;
+    private boolean multiLineComment = false;
+
+    Parser(File inputFIle) {
+        parse(inputFIle);
+    }
+
+
+    /**
+     * Returns command type of a given command
+     *
+     * @param command
+     * @return
+     */
+    CommandType commandType(String command) {
+        String[] parts = command.split(" ");
+        if (parts[0].equals("return")) {
+            return CommandType.C_FUNCTION_RETURN;
+        } else if (parts.length == 1) {
+            return CommandType.C_ARITHMETIC;
+        } else if (parts[0].equals("push")) {
+            return CommandType.C_PUSH;
+        } else if (parts[0].equals("pop")) {
+            return CommandType.C_POP;
+        } else if (parts[0].equals("label")) {
+            return CommandType.C_LABEL;
+        } else if (parts[0].equals("goto")) {
+            return CommandType.C_GOTO;
+        } else if (parts[0].equals("if-goto")) {
+            return CommandType.C_IF_GOTO;
+        } else if (parts[0].equals("function")) {
+            return CommandType.C_FUNCTION_DEFINE;
+        } else if (parts[0].equals("call")) {
+            return CommandType.C_FUNCTION_CALL;
+        }
+        throw new RuntimeException("Unknown command");
+    }
+
+
+    /**
+     * Returns segment part of the command
+     *
+     * @param command
+     * @return
+     */
+    String getArg1(String command) {
+        return command.split(" ")[1];
+    }
+
+    /**
+     * Returns value part of a command
+     *
+     * @param command
+     * @return
+     */
+    String getArg2(String command) {
+        return command.split(" ")[2];
+    }
+
+    /**
+     * Initializes bufferedReader with the input file
+     *
+     * @param file: input file where commands are stored
+     */
+    private void parse(File file) {
+        try {
+            bufferedReader = new BufferedReader(new FileReader(file));
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns true if there are any more commands to process else false
+     *
+     * @return
+     */
+    boolean hasMoreCommands() {
+        if (nextCommand.isEmpty())
+            loadNextCommand();
+        return !nextCommand.isEmpty();
+    }
+
+
+    /**
+     * Removes spaces, tabs, empty lines, single and multi line comments
+     *
+     * @param content a line from a text
+     * @return
+     */
+    private static String trimContent(String content) {
+        String[] patterns = {EMPTY_LINE, SINGLE_LINE_COMMENT};
+        for (String pattern : patterns) {
+            Pattern p = Pattern.compile(pattern);
+            Matcher matcher = p.matcher(content);
+            content = matcher.replaceAll("");
+        }
+        return content;
+    }
+
+
+    /**
+     * Returns the next command from the input file
+     *
+     * @return
+     */
+    public String nextCommand() {
+        return nextCommand.poll();
+    }
+
+
+    /**
+     * Reads the next command from the input file and loads it to the nextCommand queue
+     *
+     * @return
+     */
+    private void loadNextCommand() {
+        while (true) {
+            try {
+                String line = bufferedReader.readLine();
+                if (line == null) break;
+                String trimmedLine = trimContent(line);
+                Pattern multiLineStart = Pattern.compile(MULTI_LINE_COMMENT_START);
+                Pattern multiLineEnd = Pattern.compile(MULTI_LINE_COMMENT_END);
+                if (!trimmedLine.isEmpty()) {
+                    Matcher multiLIneStartMatcher = multiLineStart.matcher(trimmedLine);
+                    Matcher multiLIneEndMatcher = multiLineEnd.matcher(trimmedLine);
+                    String command = "";
+                    if (multiLIneStartMatcher.find()) {
+                        multiLineComment = true;
+                        command = multiLIneStartMatcher.replaceFirst(""); //return anything before comment starts
+                    } else if (multiLIneEndMatcher.find()) {
+                        multiLineComment = false;
+                        command = multiLIneEndMatcher.replaceFirst("");//return anything after comment ends
+                    } else if (!multiLineComment) {
+                        command = trimmedLine;
+                    }
+                    if (!command.isEmpty()) {
+                        command = command.replaceAll("[\\s]+", " ");
+                        nextCommand.add(command);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
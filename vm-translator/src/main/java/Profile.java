@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution counts per function and per call site. A profile file has one entry per line:
+ * <pre>
+ * function &lt;function&gt; &lt;count&gt;
+ * call &lt;caller&gt; &lt;site&gt; &lt;callee&gt; &lt;count&gt;
+ * </pre>
+ * where site is the position of the call among the call commands of the caller, starting from 0. Empty lines and lines
+ * starting with '#' are ignored.
+ */
+class Profile {
+    private final Map<String, Long> functionCounts = new HashMap<>();
+    private final Map<String, Long> callSiteCounts = new HashMap<>();
+
+    /**
+     * Reads a profile file
+     *
+     * @param file
+     * @return
+     */
+    static Profile load(File file) {
+        Profile profile = new Profile();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts[0].equals("function") && parts.length == 3) {
+                    profile.addFunctionCount(parts[1], Long.valueOf(parts[2]));
+                } else if (parts[0].equals("call") && parts.length == 5) {
+                    profile.addCallSiteCount(parts[1], Integer.valueOf(parts[2]), Long.valueOf(parts[4]));
+                } else {
+                    throw new RuntimeException("Invalid profile entry: " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return profile;
+    }
+
+    void addFunctionCount(String function, long count) {
+        functionCounts.merge(function, count, Long::sum);
+    }
+
+    void addCallSiteCount(String caller, int site, long count) {
+        callSiteCounts.merge(caller + "#" + site, count, Long::sum);
+    }
+
+    /**
+     * Returns number of times the function was called, 0 if it is not in the profile
+     */
+    long getFunctionCount(String function) {
+        return functionCounts.getOrDefault(function, 0L);
+    }
+
+    /**
+     * Returns number of times a call site was executed. Profiles with function counts only don't know call sites, in
+     * that case the count of the callee is used.
+     *
+     * @param caller: function containing the call
+     * @param site:   position of the call in the caller
+     * @param callee: called function
+     * @return
+     */
+    long getCallSiteCount(String caller, int site, String callee) {
+        Long count = callSiteCounts.get(caller + "#" + site);
+        if (count != null) {
+            return count;
+        }
+        return callSiteCounts.isEmpty() ? getFunctionCount(callee) : 0;
+    }
+}
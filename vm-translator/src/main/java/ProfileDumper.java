@@ -0,0 +1,93 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a RAM snapshot of an instrumented run into a hot function report and, optionally, a profile file for the
+ * translator's --profile option.
+ * <p>
+ * Usage: ProfileDumper &lt;map file&gt; &lt;RAM snapshot&gt; [&lt;profile output&gt;]
+ * <p>
+ * The snapshot has one RAM word per line, either as "address value" pairs or as plain values starting from address 0.
+ * Values may be decimal or 16 digit binary.
+ */
+public class ProfileDumper {
+    public static void main(String[] args) throws IOException {
+        File mapFile = new File(args[0]);
+        File ramFile = new File(args[1]);
+        Map<Integer, Integer> ram = readRam(ramFile);
+
+        List<String> functions = new ArrayList<>();
+        Map<String, Long> functionCounts = new HashMap<>();
+        List<String> profile = new ArrayList<>();
+        long totalCalls = 0;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(mapFile))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.trim().split("\\s+", 2);
+                // counters are 16 bit words, read them as unsigned
+                long count = ram.getOrDefault(Integer.valueOf(parts[0]), 0) & 0xFFFF;
+                profile.add(String.format("%s %d", parts[1], count));
+                if (parts[1].startsWith("function ")) {
+                    String function = parts[1].substring("function ".length());
+                    functions.add(function);
+                    functionCounts.put(function, count);
+                    totalCalls += count;
+                }
+            }
+        }
+
+        functions.sort((a, b) -> Long.compare(functionCounts.get(b), functionCounts.get(a)));
+        System.out.println(String.format("%10s %7s  %s", "calls", "%", "function"));
+        for (String function : functions) {
+            long count = functionCounts.get(function);
+            if (count == 0) {
+                break;
+            }
+            System.out.println(String.format("%10d %6.2f%%  %s", count, 100.0 * count / totalCalls, function));
+        }
+
+        if (args.length > 2) {
+            File profileFile = new File(args[2]);
+            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(profileFile))) {
+                for (String entry : profile) {
+                    bufferedWriter.write(entry + "\n");
+                }
+            }
+            System.out.println("Successfully wrote to: " + profileFile);
+        }
+    }
+
+    // reads the RAM snapshot into address -> value
+    private static Map<Integer, Integer> readRam(File ramFile) throws IOException {
+        Map<Integer, Integer> ram = new HashMap<>();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(ramFile))) {
+            String line;
+            int address = 0;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length > 1) {
+                    address = Integer.valueOf(parts[0]);
+                }
+                ram.put(address++, parseWord(parts[parts.length - 1]));
+            }
+        }
+        return ram;
+    }
+
+    private static int parseWord(String word) {
+        if (word.length() == 16 && word.matches("[01]+")) {
+            return Integer.parseInt(word, 2);
+        }
+        return Integer.valueOf(word);
+    }
+}
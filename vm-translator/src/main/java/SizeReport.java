@@ -0,0 +1,98 @@
+import java.io.*;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Number of Hack instructions generated per kind of VM command and per function. Entries are sorted by name so that
+ * reports of two builds can be diffed. The report is written as JSON if the file name ends with .json, else as CSV.
+ */
+class SizeReport {
+    static final String BOOTSTRAP = "(bootstrap)";
+    static final String STUBS = "(stubs)";
+
+    private final Map<String, Integer> commands = new TreeMap<>();
+    private final Map<String, Integer> functions = new TreeMap<>();
+    private int total = 0;
+
+    /**
+     * Returns the kind of a command used in the report e.g. "push constant", "pop local", "add", "call"
+     */
+    static String commandKind(VmCommand command) {
+        String[] parts = command.getText().split(" ");
+        if (command.getType() == CommandType.C_PUSH || command.getType() == CommandType.C_POP) {
+            return parts[0] + " " + parts[1];
+        }
+        return parts[0];
+    }
+
+    /**
+     * Adds instructions generated for one command
+     *
+     * @param command:      kind of command
+     * @param function:     function containing the command
+     * @param instructions: number of instructions
+     */
+    void add(String command, String function, int instructions) {
+        commands.merge(command, instructions, Integer::sum);
+        functions.merge(function, instructions, Integer::sum);
+        total += instructions;
+    }
+
+    /**
+     * Writes the report to file
+     *
+     * @param file
+     */
+    void write(File file) {
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            if (file.getName().endsWith(".json")) {
+                writeJson(bufferedWriter);
+            } else {
+                writeCsv(bufferedWriter);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeCsv(BufferedWriter bufferedWriter) throws IOException {
+        bufferedWriter.write("section,name,instructions,percent\n");
+        for (Map.Entry<String, Integer> entry : commands.entrySet()) {
+            bufferedWriter.write(String.format("command,%s,%d,%s\n", entry.getKey(), entry.getValue(),
+                    percent(entry.getValue())));
+        }
+        for (Map.Entry<String, Integer> entry : functions.entrySet()) {
+            bufferedWriter.write(String.format("function,%s,%d,%s\n", entry.getKey(), entry.getValue(),
+                    percent(entry.getValue())));
+        }
+        bufferedWriter.write(String.format("total,,%d,%s\n", total, percent(total)));
+    }
+
+    private void writeJson(BufferedWriter bufferedWriter) throws IOException {
+        bufferedWriter.write("{\n");
+        bufferedWriter.write(String.format("  \"total\": %d,\n", total));
+        writeJsonSection(bufferedWriter, "commands", commands);
+        bufferedWriter.write(",\n");
+        writeJsonSection(bufferedWriter, "functions", functions);
+        bufferedWriter.write("\n}\n");
+    }
+
+    private void writeJsonSection(BufferedWriter bufferedWriter, String name, Map<String, Integer> entries)
+            throws IOException {
+        bufferedWriter.write(String.format("  \"%s\": [", name));
+        String separator = "\n";
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            bufferedWriter.write(separator);
+            bufferedWriter.write(String.format("    {\"name\": \"%s\", \"instructions\": %d, \"percent\": %s}",
+                    entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""), entry.getValue(),
+                    percent(entry.getValue())));
+            separator = ",\n";
+        }
+        bufferedWriter.write("\n  ]");
+    }
+
+    private String percent(int instructions) {
+        return String.format(Locale.ROOT, "%.2f", total == 0 ? 0.0 : 100.0 * instructions / total);
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * A single parsed VM command
+ */
+class VmCommand {
+    private final String text;
+    private final CommandType type;
+    private final String arg1;
+    private final String arg2;
+
+    VmCommand(String text, CommandType type, String arg1, String arg2) {
+        this.text = text;
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+    }
+
+    /**
+     * Parses a command read by the parser
+     *
+     * @param parser
+     * @param command: command without comments e.g. push constant 7
+     * @return
+     */
+    static VmCommand parse(Parser parser, String command) {
+        command = command.trim();
+        CommandType type = parser.commandType(command);
+        String arg1 = null;
+        String arg2 = null;
+        if (type == CommandType.C_LABEL || type == CommandType.C_GOTO || type == CommandType.C_IF_GOTO) {
+            arg1 = parser.getArg1(command);
+        } else if (type != CommandType.C_ARITHMETIC && type != CommandType.C_FUNCTION_RETURN) {
+            arg1 = parser.getArg1(command);
+            arg2 = parser.getArg2(command);
+        }
+        return new VmCommand(command, type, arg1, arg2);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public CommandType getType() {
+        return type;
+    }
+
+    public String getArg1() {
+        return arg1;
+    }
+
+    public String getArg2() {
+        return arg2;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commands of one VM function, from its 'function' command up to the next one. Commands before the first function of a
+ * file (e.g. in test programs without functions) are kept in a function without name.
+ */
+class VmFunction {
+    private final String vmFileName;
+    private final String name;
+    private final int nLocals;
+    private final List<VmCommand> commands = new ArrayList<>();
+    private final List<String> callees = new ArrayList<>();
+
+    VmFunction(String vmFileName, String name, int nLocals) {
+        this.vmFileName = vmFileName;
+        this.name = name;
+        this.nLocals = nLocals;
+    }
+
+    /**
+     * Reads all commands of a .vm file and splits them into functions
+     *
+     * @param file: .vm file
+     * @return functions in the order they appear in the file
+     */
+    static List<VmFunction> load(File file) {
+        String vmFileName = file.getName().split("\\.")[0];
+        Parser parser = new Parser(file);
+        List<VmFunction> functions = new ArrayList<>();
+        VmFunction function = new VmFunction(vmFileName, null, 0);
+        while (parser.hasMoreCommands()) {
+            VmCommand command = VmCommand.parse(parser, parser.nextCommand());
+            if (command.getType() == CommandType.C_FUNCTION_DEFINE) {
+                if (function.getName() != null || !function.getCommands().isEmpty()) {
+                    functions.add(function);
+                }
+                function = new VmFunction(vmFileName, command.getArg1(), Integer.valueOf(command.getArg2()));
+            }
+            function.add(command);
+        }
+        if (function.getName() != null || !function.getCommands().isEmpty()) {
+            functions.add(function);
+        }
+        return functions;
+    }
+
+    void add(VmCommand command) {
+        commands.add(command);
+        if (command.getType() == CommandType.C_FUNCTION_CALL) {
+            callees.add(command.getArg1());
+        }
+    }
+
+    public String getVmFileName() {
+        return vmFileName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNLocals() {
+        return nLocals;
+    }
+
+    public List<VmCommand> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Functions called by this function, indexed by call site i.e. the position of the call among the call commands
+     * of this function
+     */
+    public List<String> getCallees() {
+        return callees;
+    }
+}